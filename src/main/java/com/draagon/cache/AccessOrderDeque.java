@@ -0,0 +1,131 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+package com.draagon.cache;
+
+/**
+ * A doubly-linked list of cache entries ordered from the least recently used
+ * at the head to the most recently used at the tail. The links are stored on
+ * the entries themselves so that moving or removing an entry is O(1) and does
+ * not allocate.
+ * <p>
+ * This class is not thread-safe and is guarded by the owning Cache's eviction
+ * lock.
+ *
+ * @author Doug Mealing
+ *
+ * @param <E> The type of entry held in the deque
+ */
+final class AccessOrderDeque<E extends AccessOrderDeque.AccessOrder<E>> {
+
+    /**
+     * An entry that can be linked into an AccessOrderDeque
+     */
+    interface AccessOrder<T> {
+
+        T getPreviousInAccessOrder();
+
+        void setPreviousInAccessOrder(T prev);
+
+        T getNextInAccessOrder();
+
+        void setNextInAccessOrder(T next);
+    }
+
+    private E first;
+    private E last;
+
+    /** Returns whether the deque has no entries */
+    boolean isEmpty() {
+        return first == null;
+    }
+
+    /** Returns whether the entry is linked into this deque */
+    boolean contains(E e) {
+        return (e.getPreviousInAccessOrder() != null)
+                || (e.getNextInAccessOrder() != null)
+                || (e == first);
+    }
+
+    /** Returns the least recently used entry, or null if empty */
+    E peekFirst() {
+        return first;
+    }
+
+    /** Returns the most recently used entry, or null if empty */
+    E peekLast() {
+        return last;
+    }
+
+    /** Links the entry as the most recently used */
+    void addLast(E e) {
+        E l = last;
+        last = e;
+        if (l == null) {
+            first = e;
+        } else {
+            l.setNextInAccessOrder(e);
+            e.setPreviousInAccessOrder(l);
+        }
+    }
+
+    /** Unlinks and returns the least recently used entry, or null if empty */
+    E pollFirst() {
+        E f = first;
+        if (f != null) {
+            unlink(f);
+        }
+        return f;
+    }
+
+    /** Unlinks the entry if it is in this deque */
+    boolean remove(E e) {
+        if (contains(e)) {
+            unlink(e);
+            return true;
+        }
+        return false;
+    }
+
+    /** Moves the entry to the most recently used position */
+    void moveToBack(E e) {
+        if (e != last) {
+            unlink(e);
+            addLast(e);
+        }
+    }
+
+    /** Unlinks every entry in the deque */
+    void clear() {
+        E e = first;
+        while (e != null) {
+            E next = e.getNextInAccessOrder();
+            e.setPreviousInAccessOrder(null);
+            e.setNextInAccessOrder(null);
+            e = next;
+        }
+        first = last = null;
+    }
+
+    private void unlink(E e) {
+        E prev = e.getPreviousInAccessOrder();
+        E next = e.getNextInAccessOrder();
+
+        if (prev == null) {
+            first = next;
+        } else {
+            prev.setNextInAccessOrder(next);
+            e.setPreviousInAccessOrder(null);
+        }
+
+        if (next == null) {
+            last = prev;
+        } else {
+            next.setPreviousInAccessOrder(prev);
+            e.setNextInAccessOrder(null);
+        }
+    }
+}
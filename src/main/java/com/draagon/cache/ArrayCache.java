@@ -0,0 +1,650 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+package com.draagon.cache;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A Cache that stores its entries inline in arrays rather than as a
+ * ConcurrentHashMap node pointing to a CacheEntry. Each segment is an open
+ * addressing table with linear probing, where an entry is a slot in parallel
+ * arrays of keys, key hashes, values and timestamps, so it costs no objects
+ * beyond its key and value and a lookup follows no pointers between them.
+ * <p>
+ * Reads take no lock. Writes to a segment are serialized by its lock and
+ * bracketed by a sequence number that is odd while a write is in progress,
+ * and a read that saw the sequence number change retries, so it never returns
+ * a value paired with another entry's key. All array slots are read and
+ * written with volatile semantics, which is what makes the sequence number
+ * check sound.
+ * <p>
+ * Expiration works the same as for the {@link Cache}: an entry expires a
+ * number of seconds after it was put or, if the reset cache flag is set, after
+ * it was last read. Expired entries are removed when they are read and by the
+ * CacheManager's check cycles, which scan the arrays. The W-TinyLFU maximum
+ * size and per entry lifetimes of the Cache are not supported, as they need a
+ * node per entry to link into their orderings.
+ * <p>
+ * A null value is not cached, so putting one removes the entry.
+ *
+ * @author Doug Mealing
+ *
+ * @param <F> The class for the key
+ * @param <E> The class for the cached value
+ */
+public class ArrayCache<F, E> {
+
+    private final static Log log = LogFactory.getLog(ArrayCache.class);
+
+    private static final int SEGMENTS = 16;
+    private static final int SEGMENT_SHIFT = 28;
+    private static final int MINIMUM_SLOTS = 16;
+
+    /* Marks a slot whose entry was removed until the table is rebuilt */
+    private static final Object DELETED = new Object();
+
+    private volatile boolean resetCache;
+    private volatile Ticker ticker = Ticker.systemTicker();
+
+    /* Whether the cache is registered with the CacheManager to be flushed */
+    private volatile boolean registered;
+
+    /* Registered with the CacheManager, so the calls only it makes are not public */
+    final Sweepable sweepable = new Sweepable() {
+        public int getCheckSeconds() {
+            return ArrayCache.this.getCheckSeconds();
+        }
+
+        public int size() {
+            return ArrayCache.this.size();
+        }
+
+        public void flush() {
+            ArrayCache.this.flush();
+        }
+
+        public void managerShutdown() {
+            ArrayCache.this.managerShutdown();
+        }
+    };
+
+    private final int checkSeconds;
+    private final int timeoutSeconds;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final Segment[] segments = new ArrayCache.Segment[SEGMENTS];
+
+    /**
+     * This creates the cache specifing the check value and the element timeout
+     * value.
+     *
+     * @param reset Whether a cache item's expiration is reset after a get call
+     * @param checkSeconds Number of seconds between the timeout check cycles
+     * @param timeoutSeconds Number of seconds before and inactive object times out.
+     */
+    public ArrayCache(boolean reset, int checkSeconds, int timeoutSeconds) {
+        this(reset, checkSeconds, timeoutSeconds, 1);
+    }
+
+    /**
+     * Create the cache specifing the check value, the element timeout, the
+     * initial number of entries and whether to reset on a read.
+     *
+     * @param resetOnRead Whether a cache item's expiration is reset after a get call
+     * @param checkSeconds Number of seconds between timeout check cycles.
+     * @param timeoutSeconds  Number of seconds before an inactive object times out.
+     * @param initialCapacity Number of entries to initially size the tables for.
+     */
+    public ArrayCache(boolean resetOnRead, int checkSeconds, int timeoutSeconds, int initialCapacity) {
+
+        this.resetCache = resetOnRead;
+        this.checkSeconds = checkSeconds;
+        this.timeoutSeconds = timeoutSeconds;
+
+        int slots = tableSize(Math.max(initialCapacity, 1) / SEGMENTS + 1);
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment(slots);
+    }
+
+    // End of constructors
+
+    /**
+     * Used to set the reset cache flag. If true, an item's timeout is reset
+     * each time it is read.
+     *
+     * @param state Whether the item timeouts are reset after each read
+     */
+    public void setResetCache(boolean state) {
+        resetCache = state;
+    }
+
+    /**
+     * Returns the state of the reset cache flag.
+     *
+     * @return <code>boolean</code> - Reset cache flag state
+     */
+    public boolean getResetCache() {
+        return resetCache;
+    }
+
+    /**
+     * Returns the number of seconds before inactive objects timeout.
+     *
+     * @return <code>int</code> - Timeout period in seconds
+     */
+    public int getTOSeconds() {
+        return timeoutSeconds;
+    }
+
+    /**
+     * Returns the number of seconds between the timeout check cycles.
+     *
+     * @return <code>int</code> - Check period in seconds
+     */
+    public int getCheckSeconds() {
+        return checkSeconds;
+    }
+
+    /**
+     * Sets the source of the current time used to stamp entries and expire
+     * them, which may only be changed while the cache is empty.
+     *
+     * @param ticker The source of the current time
+     */
+    public void setTicker(Ticker ticker) {
+        if (ticker == null)
+            throw new IllegalArgumentException("You may not have a null ticker in an ArrayCache object");
+        if (!isEmpty())
+            throw new IllegalStateException("The ticker of an ArrayCache may only be set while it is empty");
+        this.ticker = ticker;
+    }
+
+    /**
+     * Returns the source of the current time used to stamp entries and expire
+     * them
+     *
+     * @return <code>Ticker</code> - the ticker
+     */
+    public Ticker getTicker() {
+        return ticker;
+    }
+
+    /**
+     * Caches the passed item, identifying it by the passed key value. A null
+     * value removes the item.
+     *
+     * @param key Object Key object used to identify the property
+     * @param value Object Value object used to hold the property value
+     *
+     * @return <code>Object</code> - The value previously cached for the key
+     */
+    public E put(F key, E value) {
+
+        if (key == null) return null;
+
+        if (value == null)
+            return remove(key);
+
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# adding item " + key + ": " + value);
+
+        int hash = hash(key);
+        E prior = segmentFor(hash).put(hash, key, value, ticker.read());
+        // Checked on updates too, as the CacheManager may have been shut down since the key was added
+        if (!registered)
+            startHandler();
+        return prior;
+    }
+
+    /* End of put( Object, Object ) method */
+
+    /**
+     * Retrieves the cached item specified by the passed key object. If the
+     * reset cache flag is set to true, it will also reset the timestamp to
+     * prevent the item from timing out.
+     *
+     * @param key Object Key object used to identify the property
+     *
+     * @return <code>Object</code> - The cached value, or null if it is not cached
+     */
+    public E get(Object key) {
+        if (key == null)
+            return null;
+
+        int hash = hash(key);
+        return segmentFor(hash).get(hash, key, ticker.read());
+    }
+
+    /* End of get( Object ) method */
+
+    /**
+     * Returns whether an item that has not expired is cached for the key
+     *
+     * @param key Object Key object used to identify the property
+     *
+     * @return <code>boolean</code> - true if the item is cached
+     */
+    public boolean containsKey(Object key) {
+        if (key == null)
+            return false;
+
+        int hash = hash(key);
+        return segmentFor(hash).read(hash, key, ticker.read(), false) != null;
+    }
+
+    /**
+     * Removes the cached item specified by the passed key object from the cache
+     *
+     * @param key Object Key object used to identify the property
+     *
+     * @return <code>Object</code> - The value that was cached for the key
+     */
+    public E remove(Object key) {
+        if (key == null)
+            return null;
+
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# removing item " + key);
+
+        int hash = hash(key);
+        E prior = segmentFor(hash).remove(hash, key, Long.MAX_VALUE);
+        if (prior != null && registered && isEmpty())
+            stopHandler();
+        return prior;
+    }
+
+    /* End of remove( Object ) method */
+
+    /**
+     * Clears the cache of any inactive objects
+     */
+    public void flush() {
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# Flushing cache...");
+
+        long now = ticker.read();
+        int expired = 0;
+        for (Segment segment : segments)
+            expired += segment.expire(now);
+
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# Flushed " + expired + " items");
+
+        // Unregisters once empty, so the CacheManager stops sweeping it
+        if (registered && isEmpty())
+            stopHandler();
+    }
+
+    /* End of flush() method */
+
+    /**
+     * Removes all items from the cache
+     */
+    public void clear() {
+        for (Segment segment : segments)
+            segment.clear();
+        if (registered)
+            stopHandler();
+    }
+
+    /**
+     * Returns the number of items in the cache
+     *
+     * @return <code>int</code> - The number of items in cache
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments)
+            size += segment.count;
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public String toString() {
+        StringBuilder b = new StringBuilder("{");
+        for (Segment segment : segments)
+            segment.append(b);
+        if (b.length() > 1)
+            b.setLength(b.length() - 2);
+        return b.append('}').toString();
+    }
+
+    /* Returns the timeout of an item in milliseconds */
+    private long getTimeoutMillis() {
+        return timeoutSeconds * 1000L;
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[(hash >>> SEGMENT_SHIFT) & (SEGMENTS - 1)];
+    }
+
+    /* Spreads the key's hash code so that both the segment and slot bits vary */
+    private static int hash(Object key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /* Returns the power of two number of slots that holds the entries at a 3/4 load */
+    private static int tableSize(int entries) {
+        int slots = Integer.highestOneBit(Math.max(entries + (entries / 3), MINIMUM_SLOTS - 1));
+        return (slots < (1 << 30)) ? slots << 1 : slots;
+    }
+
+    /* Used to get the cache handler up and going */
+    private synchronized void startHandler() {
+        if (registered)
+            return;
+        registered = true;
+
+        if (log.isDebugEnabled()) log.debug("#CACHE# register");
+        CacheManager.register(sweepable);
+    }
+
+    /* Used to terminate the Cache Handler thread */
+    private synchronized void stopHandler() {
+        // Cleared before the size is checked, so a concurrent put that adds an
+        // item either sees it cleared and registers again or is seen here
+        boolean wasRegistered = registered;
+        registered = false;
+        if (!isEmpty()) {
+            registered = wasRegistered;
+            return;
+        }
+
+        if (log.isDebugEnabled()) log.debug("#CACHE# unregister");
+        CacheManager.unregister(sweepable);
+    }
+
+    /*
+     * Called by the CacheManager when it is shut down, so the next item put
+     * registers the cache with the manager that replaces it
+     */
+    synchronized void managerShutdown() {
+        registered = false;
+    }
+
+    /* The parallel arrays of a segment, replaced as a whole when it is rebuilt */
+    private static final class Table {
+
+        final AtomicReferenceArray<Object> keys;
+        final AtomicIntegerArray hashes;
+        final AtomicReferenceArray<Object> values;
+        final AtomicLongArray timestamps;
+        final int mask;
+
+        Table(int slots) {
+            keys = new AtomicReferenceArray<Object>(slots);
+            hashes = new AtomicIntegerArray(slots);
+            values = new AtomicReferenceArray<Object>(slots);
+            timestamps = new AtomicLongArray(slots);
+            mask = slots - 1;
+        }
+
+        /* Returns the slot holding the key, or -1 if it is not in the table */
+        int find(int hash, Object key) {
+            int slot = hash & mask;
+            for (;;) {
+                Object value = values.get(slot);
+                if (value == null)
+                    return -1;
+                if (value != DELETED && hashes.get(slot) == hash) {
+                    // The key is null if the slot was removed while a read was probing
+                    Object k = keys.get(slot);
+                    if (k == key || (k != null && k.equals(key)))
+                        return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+    }
+
+    /*
+     * A part of the cache with its own lock, sequence number and table. An
+     * empty slot has a null value and a removed one the DELETED marker until
+     * the table is rebuilt. A slot's value is written last, as a non-null
+     * value is what marks the slot as taken.
+     */
+    private final class Segment {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile int sequence;
+        private volatile Table table;
+        volatile int count;
+        private int used;
+
+        Segment(int slots) {
+            table = new Table(slots);
+        }
+
+        E get(int hash, Object key, long now) {
+            return read(hash, key, now, resetCache);
+        }
+
+        /* Reads the value without taking the lock, retrying if a write overlapped it */
+        @SuppressWarnings("unchecked")
+        E read(int hash, Object key, long now, boolean reset) {
+            for (;;) {
+                int seq = sequence;
+                if ((seq & 1) != 0) {
+                    // Wait for the write in progress rather than spinning
+                    lock.lock();
+                    lock.unlock();
+                    continue;
+                }
+
+                Table t = table;
+                int slot = t.find(hash, key);
+                Object value = (slot < 0) ? null : t.values.get(slot);
+                long timestamp = (slot < 0) ? 0L : t.timestamps.get(slot);
+                if (sequence != seq)
+                    continue;
+
+                if (value == null)
+                    return null;
+
+                if (expired(timestamp, now)) {
+                    remove(hash, key, now);
+                    return null;
+                }
+
+                // Only reset the timestamp if the reset cache flag is true. It is
+                // swapped for the one read, so if the slot was given to another
+                // key in the meantime that key's own timestamp is left alone.
+                if (reset && timestamp != now)
+                    t.timestamps.compareAndSet(slot, timestamp, now);
+                return (E) value;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        E put(int hash, Object key, Object value, long now) {
+            lock.lock();
+            try {
+                Table t = table;
+                int slot = t.find(hash, key);
+                beginWrite();
+                try {
+                    if (slot >= 0) {
+                        Object prior = t.values.get(slot);
+                        long timestamp = t.timestamps.get(slot);
+                        t.timestamps.set(slot, now);
+                        t.values.set(slot, value);
+                        // An expired value that has not been flushed yet is not returned
+                        return expired(timestamp, now) ? null : (E) prior;
+                    }
+
+                    slot = hash & t.mask;
+                    Object current;
+                    while ((current = t.values.get(slot)) != null && current != DELETED)
+                        slot = (slot + 1) & t.mask;
+
+                    if (current == null)
+                        used++;
+                    t.keys.set(slot, key);
+                    t.hashes.set(slot, hash);
+                    t.timestamps.set(slot, now);
+                    t.values.set(slot, value);
+                    count++;
+
+                    int slots = t.mask + 1;
+                    if (used > slots - (slots >>> 2))
+                        rebuild((count > slots >>> 1) ? slots << 1 : slots);
+                    return null;
+                } finally {
+                    endWrite();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /* Removes the entry if it was put or last read before the time */
+        @SuppressWarnings("unchecked")
+        E remove(int hash, Object key, long before) {
+            lock.lock();
+            try {
+                Table t = table;
+                int slot = t.find(hash, key);
+                if (slot < 0)
+                    return null;
+
+                // Removing an expired entry, which may have been put again since
+                if (before != Long.MAX_VALUE && !expired(t.timestamps.get(slot), before))
+                    return null;
+
+                E prior = (E) t.values.get(slot);
+                beginWrite();
+                try {
+                    removeSlot(t, slot);
+                } finally {
+                    endWrite();
+                }
+                return prior;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int expire(long now) {
+            lock.lock();
+            try {
+                int expired = 0;
+                Table t = table;
+                for (int slot = 0; slot <= t.mask; slot++) {
+                    Object value = t.values.get(slot);
+                    if (value != null && value != DELETED && expired(t.timestamps.get(slot), now)) {
+                        if (log.isDebugEnabled())
+                            log.debug("#CACHE# Removing item " + t.keys.get(slot) + ": "
+                                    + t.timestamps.get(slot) + "-" + now);
+                        beginWrite();
+                        try {
+                            removeSlot(t, slot);
+                        } finally {
+                            endWrite();
+                        }
+                        expired++;
+                    }
+                }
+
+                // Clear out the deleted slots if they make up most of the table
+                if (used - count > (t.mask + 1) / 2) {
+                    beginWrite();
+                    try {
+                        rebuild(t.mask + 1);
+                    } finally {
+                        endWrite();
+                    }
+                }
+                return expired;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void clear() {
+            lock.lock();
+            try {
+                beginWrite();
+                try {
+                    table = new Table(tableSize(0));
+                    count = 0;
+                    used = 0;
+                } finally {
+                    endWrite();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void append(StringBuilder b) {
+            lock.lock();
+            try {
+                Table t = table;
+                for (int slot = 0; slot <= t.mask; slot++) {
+                    Object value = t.values.get(slot);
+                    if (value != null && value != DELETED)
+                        b.append(t.keys.get(slot)).append('=').append(value).append(", ");
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean expired(long timestamp, long now) {
+            return timestamp + getTimeoutMillis() < now;
+        }
+
+        /* Called while holding the lock, which makes the sequence number single writer */
+        private void beginWrite() {
+            sequence = sequence + 1;
+        }
+
+        private void endWrite() {
+            sequence = sequence + 1;
+        }
+
+        /* Called inside a write */
+        private void removeSlot(Table t, int slot) {
+            t.values.set(slot, DELETED);
+            t.keys.set(slot, null);
+            count--;
+        }
+
+        /* Copies the live entries into a new table of the number of slots. Called inside a write. */
+        private void rebuild(int slots) {
+            Table old = table;
+            Table t = new Table(slots);
+
+            for (int i = 0; i <= old.mask; i++) {
+                Object value = old.values.get(i);
+                if (value == null || value == DELETED)
+                    continue;
+                int hash = old.hashes.get(i);
+                int slot = hash & t.mask;
+                while (t.values.get(slot) != null)
+                    slot = (slot + 1) & t.mask;
+                t.keys.set(slot, old.keys.get(i));
+                t.hashes.set(slot, hash);
+                t.timestamps.set(slot, old.timestamps.get(i));
+                t.values.set(slot, value);
+            }
+
+            used = count;
+            table = t;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+package com.draagon.cache;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A Cache of values that may still be loading. Each entry holds a
+ * CompletableFuture of the value, so callers never block waiting on a load:
+ * they get the future and chain their work onto it.
+ * <p>
+ * A future is put into the cache as soon as its load starts, so callers
+ * asking for the same key while it is loading share the future already in
+ * flight rather than starting another load. Loads run on the cache's
+ * Executor, which by default uses a virtual thread per load when running on
+ * a JVM that supports them, and otherwise the common ForkJoinPool. If a load
+ * fails or produces no value its future is removed from the cache, so the
+ * next caller tries again.
+ * <p>
+ * Expiration works the same as for the underlying {@link Cache}, with the
+ * timeout counted from when the load started.
+ *
+ * @author Doug Mealing
+ *
+ * @param <F> The class for the key
+ * @param <E> The class for the cached value
+ */
+public class AsyncCache<F, E> {
+
+    private final static Log log = LogFactory.getLog(AsyncCache.class);
+
+    private final Cache<F, CompletableFuture<E>> cache;
+    private final Executor executor;
+
+    /**
+     * This creates the cache specifing the check value and the element timeout
+     * value, running loads on the default executor.
+     *
+     * @param reset Whether a cache item's expiration is reset after a get call
+     * @param checkSeconds Number of seconds between the timeout check cycles
+     * @param timeoutSeconds Number of seconds before and inactive object times out.
+     */
+    public AsyncCache(boolean reset, int checkSeconds, int timeoutSeconds) {
+        this(reset, checkSeconds, timeoutSeconds, 1, -1L, null);
+    }
+
+    /**
+     * Create the cache specifing the check value, the element timeout, the
+     * initial map size, whether to reset on a read, the maximum number of
+     * entries to hold and the executor to run loads on.
+     *
+     * @param resetOnRead Whether a cache item's expiration is reset after a get call
+     * @param checkSeconds Number of seconds between timeout check cycles.
+     * @param timeoutSeconds  Number of seconds before an inactive object times out.
+     * @param initialCapacity Number of entries to initially put in the HashMap.
+     * @param maximumSize Maximum number of entries to hold, or a negative number for no limit
+     * @param executor Runs the loads, or null to use the default executor
+     */
+    public AsyncCache(boolean resetOnRead, int checkSeconds, int timeoutSeconds, int initialCapacity,
+            long maximumSize, Executor executor) {
+        this.cache = new Cache<F, CompletableFuture<E>>(resetOnRead, checkSeconds, timeoutSeconds,
+                initialCapacity, maximumSize);
+        this.executor = (executor == null) ? defaultExecutor() : executor;
+    }
+
+    // End of constructors
+
+    /**
+     * Returns the executor that loads are run on
+     *
+     * @return <code>Executor</code> - the executor
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Returns the cache of futures backing this cache
+     *
+     * @return <code>Cache</code> - the underlying cache
+     */
+    public Cache<F, CompletableFuture<E>> getCache() {
+        return cache;
+    }
+
+    /**
+     * Retrieves the future for the cached item specified by the passed key
+     * object, which may still be loading.
+     *
+     * @param key Object Key object used to identify the property
+     *
+     * @return <code>CompletableFuture</code> - the future value, or null if it
+     *         is not cached
+     */
+    public CompletableFuture<E> getIfPresent(Object key) {
+        return cache.get(key);
+    }
+
+    /**
+     * Retrieves the future for the cached item specified by the passed key
+     * object, starting a load with the passed loader on the executor if it is
+     * not cached.
+     *
+     * @param key Object Key object used to identify the property
+     * @param loader Loads the value if it is not cached
+     *
+     * @return <code>CompletableFuture</code> - the cached or loading value
+     */
+    public CompletableFuture<E> get(final F key, final CacheLoader<? super F, E> loader) {
+        if (key == null)
+            return null;
+
+        CompletableFuture<E> future = cache.get(key);
+        if (future != null)
+            return future;
+
+        final CompletableFuture<E> loading = new CompletableFuture<E>();
+        CompletableFuture<E> inFlight = cache.putIfAbsent(key, loading);
+        if (inFlight != null)
+            return inFlight;
+
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# loading item " + key);
+
+        removeWhenUnsuccessful(key, loading);
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        loading.complete(loader.load(key));
+                    } catch (Throwable t) {
+                        loading.completeExceptionally(t);
+                    }
+                }
+            });
+        } catch (Throwable t) {
+            // The executor rejected the load
+            loading.completeExceptionally(t);
+        }
+        return loading;
+    }
+
+    /* End of get( Object, CacheLoader ) method */
+
+    /**
+     * Caches the passed future value, identifying it by the passed key value.
+     *
+     * @param key Object Key object used to identify the property
+     * @param future The value, which may still be loading
+     *
+     * @return <code>CompletableFuture</code> - the future previously cached for the key
+     */
+    public CompletableFuture<E> put(F key, CompletableFuture<E> future) {
+        if (key == null)
+            return null;
+
+        CompletableFuture<E> prior = cache.put(key, future);
+        removeWhenUnsuccessful(key, future);
+        return prior;
+    }
+
+    /**
+     * Removes the cached item specified by the passed key object from the cache
+     *
+     * @param key Object Key object used to identify the property
+     *
+     * @return <code>CompletableFuture</code> - the future that was cached for the key
+     */
+    public CompletableFuture<E> remove(Object key) {
+        return cache.remove(key);
+    }
+
+    /**
+     * Returns the number of items in the cache, including those still loading
+     *
+     * @return <code>int</code> - The number of items in cache
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * Removes all items from the cache
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    public String toString() {
+        return cache.toString();
+    }
+
+    /* Removes the future from the cache if it fails or completes without a value */
+    private void removeWhenUnsuccessful(final F key, final CompletableFuture<E> future) {
+        future.whenComplete(new BiConsumer<E, Throwable>() {
+            public void accept(E value, Throwable error) {
+                if (value == null || error != null) {
+                    if (log.isDebugEnabled())
+                        log.debug("#CACHE# removing unsuccessful item " + key + ": " + error);
+                    cache.remove(key, future);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the default executor for loads, which starts a virtual thread
+     * for each load when the JVM supports them and is otherwise the common
+     * ForkJoinPool.
+     *
+     * @return <code>Executor</code> - the default executor
+     */
+    public static Executor defaultExecutor() {
+        return DefaultExecutor.INSTANCE;
+    }
+
+    /* Holds the default executor, which is only looked up when first needed */
+    private static final class DefaultExecutor {
+
+        static final Executor INSTANCE = create();
+
+        private static Executor create() {
+            try {
+                Method m = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (Executor) m.invoke(null);
+            } catch (Exception e) {
+                return ForkJoinPool.commonPool();
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+package com.draagon.cache;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * An {@link AsyncCache} that populates itself. When get() is called for a key
+ * that is not in the cache the {@link CacheLoader} is run on the executor and
+ * its future is cached straight away, so concurrent callers share one load.
+ *
+ * @author Doug Mealing
+ *
+ * @param <F> The class for the key
+ * @param <E> The class for the cached value
+ */
+public class AsyncLoadingCache<F, E> extends AsyncCache<F, E> {
+
+    private final CacheLoader<? super F, E> loader;
+
+    /**
+     * This creates the loading cache specifing the check value, the element
+     * timeout value and the loader, running loads on the default executor.
+     *
+     * @param reset Whether a cache item's expiration is reset after a get call
+     * @param checkSeconds Number of seconds between the timeout check cycles
+     * @param timeoutSeconds Number of seconds before and inactive object times out.
+     * @param loader Loads the value of a missing item
+     */
+    public AsyncLoadingCache(boolean reset, int checkSeconds, int timeoutSeconds, CacheLoader<? super F, E> loader) {
+        this(reset, checkSeconds, timeoutSeconds, 1, -1L, null, loader);
+    }
+
+    /**
+     * Create the loading cache specifing the check value, the element timeout,
+     * the initial map size, whether to reset on a read, the maximum number of
+     * entries to hold, the executor to run loads on and the loader.
+     *
+     * @param resetOnRead Whether a cache item's expiration is reset after a get call
+     * @param checkSeconds Number of seconds between timeout check cycles.
+     * @param timeoutSeconds  Number of seconds before an inactive object times out.
+     * @param initialCapacity Number of entries to initially put in the HashMap.
+     * @param maximumSize Maximum number of entries to hold, or a negative number for no limit
+     * @param executor Runs the loads, or null to use the default executor
+     * @param loader Loads the value of a missing item
+     */
+    public AsyncLoadingCache(boolean resetOnRead, int checkSeconds, int timeoutSeconds, int initialCapacity,
+            long maximumSize, Executor executor, CacheLoader<? super F, E> loader) {
+        super(resetOnRead, checkSeconds, timeoutSeconds, initialCapacity, maximumSize, executor);
+
+        if (loader == null)
+            throw new IllegalArgumentException("You may not have a null loader in an AsyncLoadingCache object");
+        this.loader = loader;
+    }
+
+    // End of constructors
+
+    /**
+     * Returns the loader used to populate missing items
+     *
+     * @return <code>CacheLoader</code> - the loader
+     */
+    public CacheLoader<? super F, E> getLoader() {
+        return loader;
+    }
+
+    /**
+     * Retrieves the future for the cached item specified by the passed key
+     * object, starting a load on the executor if it is not cached.
+     *
+     * @param key Object Key object used to identify the property
+     *
+     * @return <code>CompletableFuture</code> - the cached or loading value
+     */
+    public CompletableFuture<E> get(F key) {
+        return get(key, loader);
+    }
+}
@@ -6,15 +6,30 @@
  */
 package com.draagon.cache;
 
+import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -31,6 +46,54 @@ import org.apache.commons.logging.LogFactory;
  * use the resetOnRead true if you don't mind having data that could be stale
  * indefinitely if read often. Please read the constructor documentation for
  * more details.
+ * <p>
+ * When reads do not reset the timeout every entry lives for the same time
+ * from when it was put, so entries expire in the order they were written. They
+ * are kept in a lock-free FIFO queue and each check cycle removes entries from
+ * the head until it reaches one that has not expired. When reads do reset the
+ * timeout entries expire in the order they were last accessed, so they are
+ * kept in an access-ordered list and expired from its least recently used
+ * end. Reads are recorded in a lossy buffer and replayed against the list in
+ * batches, so a read never waits on the reordering. Entries whose expiration
+ * order was broken by changing the reset flag are indexed by the time they
+ * expire in a hierarchical timing wheel. Either way each check cycle only
+ * visits the entries that are due rather than scanning the whole cache.
+ * <p>
+ * Entries may also have their own lifetime, either by putting them with a
+ * time to live or by creating the Cache with an {@link Expiry} that calculates
+ * the lifetime of each entry as it is created, updated and read. These
+ * entries are always indexed on the timing wheel.
+ * <p>
+ * A Cache may also be bounded to a maximum number of entries. A bounded Cache
+ * uses the W-TinyLFU policy to decide which entries to evict: new entries are
+ * admitted into a small LRU window, and when they age out of the window they
+ * only replace an entry in the main segmented LRU if they have been used more
+ * often, as estimated by a frequency sketch. This keeps popular entries in the
+ * cache when a scan of one-time keys passes through it.
+ * <p>
+ * A bounded Cache may also be given a {@link DiskOverflow} that the entries
+ * it evicts are written to, and which is checked before an item is reported
+ * as missing.
+ * <p>
+ * The items of a Cache can be saved to a snapshot file with their expiration
+ * times and restored into a new Cache, such as after a restart, so that it
+ * does not start out empty.
+ * <p>
+ * An unbounded Cache holding a very large number of entries may instead use
+ * {@link #setSampledExpiry(int, double) sampled expiry}, which keeps no
+ * ordering structure at all. Each check cycle samples entries from the map,
+ * removes those that have expired and samples again while a large part of the
+ * sample had expired, so the work done follows the amount of expired entries.
+ * Expired entries the sampling has not reached yet are removed when read.
+ * <p>
+ * A Cache may also {@link #setAmortizedMaintenance(boolean) maintain itself}
+ * instead of being flushed by the CacheManager, which is then never started.
+ * The threads calling put() and get() take turns doing the expiry in small
+ * batches whenever it is due, which suits short-lived programs.
+ * <p>
+ * The current time is read from a {@link Ticker} once per operation, which by
+ * default reads the system clock. A {@link CoarseTicker} avoids reading the
+ * clock on every call, and a {@link ManualTicker} lets tests move the time.
  * 
  * @author Doug Mealing
  * 
@@ -46,6 +109,132 @@ public class Cache<F, E> implements Map<F, E> {
     private volatile boolean resetCache = true;
     private final int timeoutSeconds;
     private final int checkSeconds;
+    private final Expiry<? super F, ? super E> expiry;
+
+    /* Used when the cache has no maximum size */
+    private static final long UNBOUNDED = -1L;
+
+    /* Percentage of the maximum size used for the admission window */
+    private static final double PERCENT_WINDOW = 0.01d;
+    /* Percentage of the main space used for the protected segment */
+    private static final double PERCENT_PROTECTED = 0.80d;
+
+    /* Queue types of an entry in the W-TinyLFU policy, or its access order if unbounded */
+    private static final byte WINDOW = 1;
+    private static final byte PROBATION = 2;
+    private static final byte PROTECTED = 3;
+
+    /* The W-TinyLFU policy structures, all guarded by the eviction lock */
+    private final long maximumSize;
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final FrequencySketch sketch;
+    private final AccessOrderDeque<CacheEntry> windowDeque;
+    private final AccessOrderDeque<CacheEntry> probationDeque;
+    private final AccessOrderDeque<CacheEntry> protectedDeque;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+    private long windowSize;
+    private long mainSize;
+    private long protectedSize;
+
+    /* The entries in the order they were written when reads do not reset the timeout */
+    private final ConcurrentLinkedQueue<CacheEntry> writeQueue = new ConcurrentLinkedQueue<CacheEntry>();
+
+    /* Reads waiting to be replayed against the access order */
+    private final ReadBuffer<CacheEntry> readBuffer = new ReadBuffer<CacheEntry>();
+    private final ReadBuffer.Consumer<CacheEntry> onRead = new ReadBuffer.Consumer<CacheEntry>() {
+        public void accept(CacheEntry entry) {
+            onRead(entry);
+        }
+    };
+
+    /* Whether the cache is registered with the CacheManager to be flushed */
+    private volatile boolean registered;
+
+    /*
+     * Registered with the CacheManager in place of the cache, so the calls
+     * only the manager makes stay out of the public API. The manager holds it
+     * weakly, and the cache holds it for as long as the cache is used.
+     */
+    final Sweepable sweepable = new Sweepable() {
+        public int getCheckSeconds() {
+            return Cache.this.getCheckSeconds();
+        }
+
+        public int size() {
+            return Cache.this.size();
+        }
+
+        public void flush() {
+            Cache.this.flush();
+        }
+
+        public boolean sweep() {
+            return Cache.this.sweep();
+        }
+
+        public void managerShutdown() {
+            Cache.this.managerShutdown();
+        }
+    };
+
+    /* Second tier that evicted entries are written to, if any */
+    private volatile DiskOverflow<F, E> overflow;
+
+    /* The source of the current time */
+    private volatile Ticker ticker = Ticker.systemTicker();
+
+    /* Entries expired by a flush that are yet to be removed from the map, guarded by the eviction lock */
+    private List<CacheEntry> expiredEntries;
+
+    /* Number of expired entries above which a flush removes them from the map in parallel */
+    private static final int PARALLEL_REMOVAL = 8192;
+
+    /* Indexes the entries by expiration time, guarded by the eviction lock */
+    private TimerWheel<CacheEntry> timerWheel;
+    private final TimerWheel.Expirer<CacheEntry> expirer = new TimerWheel.Expirer<CacheEntry>() {
+        public boolean expire(CacheEntry entry, long now) {
+            // Left on the wheel for the next sweep once the budget runs out
+            return withinBudget() && expireEntry(entry, now);
+        }
+
+        public boolean isExhausted() {
+            return budgetExhausted;
+        }
+    };
+
+    /* Most entries and nanoseconds a sweep by the CacheManager may spend holding the eviction lock */
+    private static final int DEFAULT_SWEEP_ENTRIES = 10000;
+    private static final long DEFAULT_SWEEP_NANOS = 1000000L;
+    private volatile int sweepMaxEntries = DEFAULT_SWEEP_ENTRIES;
+    private volatile long sweepMaxNanos = DEFAULT_SWEEP_NANOS;
+
+    /* The budget of the sweep in progress, guarded by the eviction lock */
+    private int budgetEntries;
+    private long budgetDeadline;
+    private boolean budgeted;
+    private boolean budgetExhausted;
+
+    /* Maintenance done by the calling threads rather than the CacheManager */
+    private static final int IDLE = 0;
+    private static final int REQUIRED = 1;
+    private static final int PROCESSING = 2;
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<Cache> DRAIN_STATUS =
+            AtomicIntegerFieldUpdater.newUpdater(Cache.class, "drainStatus");
+    private volatile boolean amortized;
+    private volatile int drainStatus = IDLE;
+    private volatile long nextMaintenance;
+
+    /* Sampled expiry, used instead of the write queue, access order and timer wheel */
+    private static final int DEFAULT_SAMPLE_SIZE = 20;
+    private static final double DEFAULT_SAMPLE_THRESHOLD = 0.25d;
+    private volatile boolean sampled;
+    private volatile int sampleSize = DEFAULT_SAMPLE_SIZE;
+    private volatile double sampleThreshold = DEFAULT_SAMPLE_THRESHOLD;
+
+    /* Where the next sample is taken from, guarded by the eviction lock */
+    private Iterator<CacheEntry> sampleCursor;
 
     /**
      * This inner class provides the ability to enumerate the cache object. It
@@ -65,7 +254,7 @@ public class Cache<F, E> implements Map<F, E> {
         }
 
         public E nextElement() {
-            CacheEntry tmp = (CacheEntry) mElements.nextElement();
+            CacheEntry tmp = mElements.nextElement();
             if (tmp == null)
                 return null;
             return tmp.getValue();
@@ -79,28 +268,111 @@ public class Cache<F, E> implements Map<F, E> {
     /* End of inner class CacheEnumeration */
 
     /*
-     * This inner class stores each of the entries in the cache
+     * Atomic access to the fields of an entry, as an inner class may not hold
+     * the updaters. The fields may not be private for the updaters to reach them.
+     */
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Cache.CacheEntry, Object> VALUE =
+            AtomicReferenceFieldUpdater.newUpdater(Cache.CacheEntry.class, Object.class, "value");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicLongFieldUpdater<Cache.CacheEntry> TIMESTAMP =
+            AtomicLongFieldUpdater.newUpdater(Cache.CacheEntry.class, "timestamp");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<Cache.CacheEntry> QUEUED =
+            AtomicIntegerFieldUpdater.newUpdater(Cache.CacheEntry.class, "queued");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<Cache.CacheEntry> UPDATING =
+            AtomicIntegerFieldUpdater.newUpdater(Cache.CacheEntry.class, "updating");
+
+    /* How an entry's expiration is ordered, unknown until it has been written */
+    private static final byte WRITE_ORDER = 1;
+    private static final byte ACCESS_ORDER = 2;
+    private static final byte VARIABLE_ORDER = 3;
+
+    /* Returned when an entry could not be updated in place */
+    private static final Object NOT_UPDATED = new Object();
+
+    /*
+     * This inner class stores each of the entries in the cache. Its value and
+     * timestamp are volatile and updated atomically, so no method takes a lock.
      */
-    public class CacheEntry implements Map.Entry<F, E> {
+    public class CacheEntry implements Map.Entry<F, E>, AccessOrderDeque.AccessOrder<CacheEntry>, TimerWheel.Timer {
         
         public final F key;
         public volatile E value;
         public volatile long timestamp;
 
+        // Number of milliseconds after the timestamp that the entry expires
+        private volatile long duration;
+
+        // When the value was written, as the timestamp may be reset by reads
+        private volatile long writeTime;
+
+        // Number of times the entry is in the write queue, more than once
+        // only when updates race to queue it
+        volatile int queued;
+
+        // Set when the entry is updated while it is in the write queue
+        private volatile boolean rewritten;
+
+        // Held while the value and lifetime are updated in place or the entry is expired
+        volatile int updating;
+
+        // How the expiration is ordered, as an entry is only updated in place
+        // while that is unchanged. Written once after the entry is mapped, so
+        // an update that sees it unset allocates a new entry instead.
+        private byte expirationOrder;
+
+        // Policy state, guarded by the eviction lock
+        private CacheEntry previousInAccessOrder;
+        private CacheEntry nextInAccessOrder;
+        private byte queueType;
+        private volatile boolean retired;
+        private long variableTime;
+        private TimerWheel.Timer previousInVariableOrder;
+        private TimerWheel.Timer nextInVariableOrder;
+
         public CacheEntry(F key, E value) {
+            this(key, value, ticker.read(), getTimeoutMillis());
+        }
+
+        CacheEntry(F key, E value, long timestamp, long duration) {
 
             if (key == null)
                 throw new IllegalArgumentException("You may not have a null key in a Cache object");
 
             this.key = key;
             this.value = value;
-            this.timestamp = System.currentTimeMillis();
+            this.timestamp = timestamp;
+            this.writeTime = timestamp;
+            this.duration = duration;
+        }
+
+        /**
+         * Returns the time the value was written to the cache
+         * 
+         * @return <code>long</code> - write time in milliseconds
+         */
+        public long getWriteTime() {
+            return writeTime;
         }
 
-        public synchronized String toString() {
-            if (value == null)
+        /*
+         * Returns the time in milliseconds after which the entry has expired,
+         * saturating so that an Expiry of Long.MAX_VALUE never wraps around
+         */
+        private long expirationTime() {
+            long time = timestamp + duration;
+            if (((timestamp ^ time) & (duration ^ time)) < 0)
+                return (duration < 0) ? Long.MIN_VALUE : Long.MAX_VALUE;
+            return time;
+        }
+
+        public String toString() {
+            E v = value;
+            if (v == null)
                 return "";
-            return value.toString();
+            return v.toString();
         }
 
         public F getKey() {
@@ -111,11 +383,23 @@ public class Cache<F, E> implements Map<F, E> {
             return value;
         }
 
-        public synchronized E setValue(E value) {
+        @SuppressWarnings("unchecked")
+        public E setValue(E value) {
+            return (E) VALUE.getAndSet(this, value);
+        }
 
-            E oldVal = this.value;
-            this.value = value;
-            return oldVal;
+        /**
+         * Sets the value only if it is still the expected value, compared by
+         * identity, so that a value may be read, modified and written back
+         * without losing a concurrent update. The expiration time is not
+         * changed.
+         * 
+         * @param expect The value read from the entry
+         * @param update The value to replace it with
+         * @return <code>boolean</code> - true if the value was replaced
+         */
+        public boolean compareAndSetValue(E expect, E update) {
+            return VALUE.compareAndSet(this, expect, update);
         }
 
         @Override
@@ -125,21 +409,65 @@ public class Cache<F, E> implements Map<F, E> {
         }
 
         @Override
-        public synchronized boolean equals(Object o) {
+        public boolean equals(Object o) {
 
             if (o == null)
                 return false;
             if (!(o.getClass().isAssignableFrom(CacheEntry.class)))
                 return false;
-            CacheEntry ce = (CacheEntry) o;
+            Cache<?, ?>.CacheEntry ce = (Cache<?, ?>.CacheEntry) o;
             if (!ce.getKey().equals(getKey()))
                 return false;
-            if (ce.getValue() == null && getValue() == null)
+
+            // Each value is read once, as either may change concurrently
+            E v = getValue();
+            Object other = ce.getValue();
+            if (other == null && v == null)
                 return true;
-            if (ce.getValue() == null || !ce.getValue().equals(getValue()))
+            if (other == null || !other.equals(v))
                 return false;
             return true;
         }
+
+        public CacheEntry getPreviousInAccessOrder() {
+            return previousInAccessOrder;
+        }
+
+        public void setPreviousInAccessOrder(CacheEntry prev) {
+            previousInAccessOrder = prev;
+        }
+
+        public CacheEntry getNextInAccessOrder() {
+            return nextInAccessOrder;
+        }
+
+        public void setNextInAccessOrder(CacheEntry next) {
+            nextInAccessOrder = next;
+        }
+
+        public long getVariableTime() {
+            return variableTime;
+        }
+
+        public void setVariableTime(long time) {
+            variableTime = time;
+        }
+
+        public TimerWheel.Timer getPreviousInVariableOrder() {
+            return previousInVariableOrder;
+        }
+
+        public void setPreviousInVariableOrder(TimerWheel.Timer prev) {
+            previousInVariableOrder = prev;
+        }
+
+        public TimerWheel.Timer getNextInVariableOrder() {
+            return nextInVariableOrder;
+        }
+
+        public void setNextInVariableOrder(TimerWheel.Timer next) {
+            nextInVariableOrder = next;
+        }
     }
 
     /* End of the CacheItem inner cache */
@@ -171,14 +499,84 @@ public class Cache<F, E> implements Map<F, E> {
     // * @param growth Number of elements to grow the cache by when it needs to
     // resize
     public Cache(boolean resetOnRead, int checkSeconds, int timeoutSeconds, int initialCapacity) {
+        this(resetOnRead, checkSeconds, timeoutSeconds, initialCapacity, UNBOUNDED);
+    }
+
+    /**
+     * Create the cache specifing the check value, the element timeout, the
+     * initial map size, whether to reset on a read, and the maximum number of
+     * entries to hold. Once the maximum size is reached the least valuable
+     * entries are evicted as new entries are added.
+     * 
+     * @param resetOnRead Whether a cache item's expiration is reset after a get call
+     * @param checkSeconds Number of seconds between timeout check cycles.
+     * @param timeoutSeconds  Number of seconds before an inactive object times out.
+     * @param initialCapacity Number of entries to initially put in the HashMap.
+     * @param maximumSize Maximum number of entries to hold, or a negative number for no limit
+     */
+    public Cache(boolean resetOnRead, int checkSeconds, int timeoutSeconds, int initialCapacity, long maximumSize) {
+        this(resetOnRead, checkSeconds, timeoutSeconds, null, initialCapacity, maximumSize);
+    }
+
+    /**
+     * Create the cache specifing the check value and the policy that
+     * calculates the lifetime of each entry.
+     * 
+     * @param checkSeconds Number of seconds between timeout check cycles.
+     * @param expiry Calculates the number of milliseconds each entry lives for
+     */
+    public Cache(int checkSeconds, Expiry<? super F, ? super E> expiry) {
+        this(checkSeconds, expiry, 1, UNBOUNDED);
+    }
+
+    /**
+     * Create the cache specifing the check value, the policy that calculates
+     * the lifetime of each entry, the initial map size, and the maximum number
+     * of entries to hold.
+     * 
+     * @param checkSeconds Number of seconds between timeout check cycles.
+     * @param expiry Calculates the number of milliseconds each entry lives for
+     * @param initialCapacity Number of entries to initially put in the HashMap.
+     * @param maximumSize Maximum number of entries to hold, or a negative number for no limit
+     */
+    public Cache(int checkSeconds, Expiry<? super F, ? super E> expiry, int initialCapacity, long maximumSize) {
+        this(false, checkSeconds, 0, expiry, initialCapacity, maximumSize);
+
+        if (expiry == null)
+            throw new IllegalArgumentException("You may not have a null expiry in a Cache object");
+    }
+
+    private Cache(boolean resetOnRead, int checkSeconds, int timeoutSeconds, Expiry<? super F, ? super E> expiry,
+            int initialCapacity, long maximumSize) {
         
         this.resetCache = resetOnRead;
         this.checkSeconds = checkSeconds;
         this.timeoutSeconds = timeoutSeconds;
+        this.expiry = expiry;
         this.entryMap = new ConcurrentHashMap<F, CacheEntry>(initialCapacity);
-        
-        // Work around for dead-lock issue when first initializing the CacheManager
-        CacheManager.getInstance();
+        this.timerWheel = new TimerWheel<CacheEntry>(ticker.read());
+
+        if (maximumSize < 0) {
+            // The window alone holds the access order when reads reset the timeout
+            this.maximumSize = UNBOUNDED;
+            this.sketch = null;
+            this.windowDeque = new AccessOrderDeque<CacheEntry>();
+            this.probationDeque = null;
+            this.protectedDeque = null;
+            this.windowMaximum = 0;
+            this.protectedMaximum = 0;
+        } else {
+            this.maximumSize = maximumSize;
+            this.sketch = new FrequencySketch(maximumSize);
+            this.windowDeque = new AccessOrderDeque<CacheEntry>();
+            this.probationDeque = new AccessOrderDeque<CacheEntry>();
+            this.protectedDeque = new AccessOrderDeque<CacheEntry>();
+            this.windowMaximum = (maximumSize == 0) ? 0 : Math.max(1L, (long) (PERCENT_WINDOW * maximumSize));
+            this.protectedMaximum = (long) (PERCENT_PROTECTED * (maximumSize - windowMaximum));
+        }
+
+        // The CacheManager is created when the first entry is put, so a Cache
+        // that maintains itself never starts its thread
     }
 
     // End of constructors
@@ -193,7 +591,35 @@ public class Cache<F, E> implements Map<F, E> {
      * @param state boolean Set the state of the reset cache
      */
     public void setResetCache(boolean state) {
-        resetCache = state;
+        evictionLock.lock();
+        try {
+            // Access order no longer matches expiration order once reads stop
+            // resetting the timeout, so let the timer wheel track those entries
+            if (resetCache && !state) {
+                scheduleAccessOrder(windowDeque);
+                if (evicts()) {
+                    scheduleAccessOrder(probationDeque);
+                    scheduleAccessOrder(protectedDeque);
+                }
+            }
+            resetCache = state;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /* Schedules the entries in the access order deque on the timer wheel */
+    private void scheduleAccessOrder(AccessOrderDeque<CacheEntry> deque) {
+        CacheEntry entry = deque.peekFirst();
+        while (entry != null) {
+            CacheEntry next = entry.getNextInAccessOrder();
+            if (!evicts())
+                unlink(entry);
+            timerWheel.deschedule(entry);
+            entry.variableTime = entry.expirationTime();
+            timerWheel.schedule(entry);
+            entry = next;
+        }
     }
 
     /**
@@ -229,232 +655,1756 @@ public class Cache<F, E> implements Map<F, E> {
     /* End of getCheckSeconds method */
 
     /**
-     * Clears the cache of any inactive objects
+     * Returns the policy that calculates the lifetime of each entry
+     * 
+     * @return <code>Expiry</code> - the expiry policy, or null if entries live for the timeout
      */
-    public void flush() {
-        synchronized( entryMap ) {
-            // Determine whether to actually flush the rooms or not
-            if (log.isDebugEnabled())
-                log.debug("#CACHE# Flushing cache...");
-
-            // Enumerate through the rooms and remove the empty ones
-            for (F key : entryMap.keySet()) {
-                flush(key);
-            }
-        }
+    public Expiry<? super F, ? super E> getExpiry() {
+        return expiry;
     }
 
-    /* End of flush() method */
-
     /**
-     * Clears the cache of the specified object if it is expired
+     * Sets the disk tier that entries evicted for size are written to, which
+     * reads that miss check before reporting the item as missing.
      * 
-     * @param key The key of the item to flush
+     * @param overflow The disk tier, or null to drop evicted entries
      */
-    private void flush(Object key) {
-        CacheEntry tmp = (CacheEntry) entryMap.get(key);
-        if (tmp == null)
-            return;
+    public void setOverflow(DiskOverflow<F, E> overflow) {
+        if (overflow != null && !evicts())
+            throw new IllegalStateException("Only a Cache with a maximum size can overflow to disk");
+        this.overflow = overflow;
+    }
 
-        long t = System.currentTimeMillis();
-        long timeout = getTOSeconds() * 1000;
+    /**
+     * Returns the disk tier that entries evicted for size are written to
+     * 
+     * @return <code>DiskOverflow</code> - the disk tier, or null if there is none
+     */
+    public DiskOverflow<F, E> getOverflow() {
+        return overflow;
+    }
 
-        if (tmp.timestamp + timeout < t) {
-            if (log.isDebugEnabled())
-                log.debug("#CACHE# Removing item " + key + ": " + tmp.timestamp + "-" + t);
-            remove(key);
+    /**
+     * Sets the source of the current time used to stamp entries and expire
+     * them, which may only be changed while the cache is empty.
+     * 
+     * @param ticker The source of the current time
+     */
+    public void setTicker(Ticker ticker) {
+        if (ticker == null)
+            throw new IllegalArgumentException("You may not have a null ticker in a Cache object");
+
+        evictionLock.lock();
+        try {
+            if (!entryMap.isEmpty())
+                throw new IllegalStateException("The ticker of a Cache may only be set while it is empty");
+            this.ticker = ticker;
+            this.timerWheel = new TimerWheel<CacheEntry>(ticker.read());
+        } finally {
+            evictionLock.unlock();
         }
     }
 
     /**
-     * Caches the passed item, identifying it by the passed key value.
-     * 
-     * @param key Object Key object used to identify the property
-     * @param value Object Value object used to hold the property value
+     * Returns the source of the current time used to stamp entries and expire
+     * them
      * 
-     * @return <code>Object</code> - A cache object containing the key and value
-     *         objects
+     * @return <code>Ticker</code> - the ticker
      */
-    public E put(F key, E value) {
-        
-        if (key == null) return null;
-
-        if (log.isDebugEnabled())
-            log.debug("#CACHE# adding item " + key + ": " + value);
-
-        CacheEntry item = new CacheEntry(key, value);
-        item.timestamp = System.currentTimeMillis();
-        CacheEntry tmp = (CacheEntry) entryMap.put(key, item);
-        if (entryMap.size() == 1)
-            startHandler();
-        if (tmp != null)
-            return tmp.getValue();
-        else
-            return null;
+    public Ticker getTicker() {
+        return ticker;
     }
 
-    /* End of put( Object, Object ) method */
-
     /**
-     * Retrieves the cached item specified by the passed key object. If the
-     * reset cache flag is set to true, it will also reset the timestamp to
-     * prevent the item from timing out.
-     * 
-     * @param key Object Key object used to identify the property
+     * Expires entries by sampling the map rather than keeping them ordered by
+     * when they expire, which saves the memory and upkeep of the ordering for
+     * very large caches. Each check cycle takes samples of entries from a
+     * cursor that moves round the map, removing the expired ones, and takes
+     * another sample while more than the threshold of the last one had
+     * expired. Expired entries that are not sampled are removed when read, so
+     * they are never returned, but may be held on to for longer.
+     * <p>
+     * This may only be set while the cache is empty, and not for a bounded
+     * cache as the W-TinyLFU policy orders its entries anyway.
      * 
-     * @return <code>Object</code> - A cache object containing the key and value
-     *         objects
+     * @param sampleSize Number of entries in each sample
+     * @param threshold Fraction of a sample that must have expired to take another
      */
-    public E get(Object key) {
-        CacheEntry tmp = getEntry(key);
-        if (tmp == null)
-            return null;
-
-        // Only reset the timestamp if the reset cache flag is true
-        if (resetCache)
-            tmp.timestamp = System.currentTimeMillis();
-
-        return tmp.getValue();
+    public void setSampledExpiry(int sampleSize, double threshold) {
+        if (sampleSize <= 0)
+            throw new IllegalArgumentException("The sample size of a Cache must be greater than zero");
+        if (!(threshold >= 0.0d && threshold <= 1.0d))
+            throw new IllegalArgumentException("The sample threshold of a Cache must be between 0 and 1");
+        if (evicts())
+            throw new IllegalStateException("A Cache with a maximum size may not use sampled expiry");
+
+        evictionLock.lock();
+        try {
+            if (!entryMap.isEmpty())
+                throw new IllegalStateException("Sampled expiry may only be set while a Cache is empty");
+            this.sampleSize = sampleSize;
+            this.sampleThreshold = threshold;
+            this.sampled = true;
+        } finally {
+            evictionLock.unlock();
+        }
     }
 
-    /* End of get( Object ) method */
-
     /**
-     * Retrieves the cached item specified by the passed key object. If the
-     * reset cache flag is set to true, it will also reset the timestamp to
-     * prevent the item from timing out.
-     * 
-     * @param key Object Key object used to identify the property
+     * Returns whether entries are expired by sampling the map
      * 
-     * @return <code>Object</code> - A cache object containing the key and value
-     *         objects
+     * @return <code>boolean</code> - true if sampled expiry is used
      */
-    public CacheEntry getEntry(Object key) {
-        if (key == null)
-            return null;
-
-        if (log.isDebugEnabled())
-            log.debug("#CACHE# getting item " + key);
-
-        // Flush the key if it exists
-        flush(key);
-
-        CacheEntry tmp = (CacheEntry) entryMap.get(key);
-        if (tmp == null)
-            return null;
-
-        // Only reset the timestamp if the reset cache flag is true
-        if (resetCache)
-            tmp.timestamp = System.currentTimeMillis();
-
-        return tmp;
+    public boolean isSampledExpiry() {
+        return sampled;
     }
 
-    /* End of get( Object ) method */
-
     /**
-     * Removes the cached item specified by the passed key object from the cache
-     * 
-     * @param key Object Key object used to identify the property
+     * Sets whether the cache is maintained by the threads that use it rather
+     * than by the CacheManager. When set, a put() or get() made once the check
+     * interval has passed removes a batch of expired entries within the sweep
+     * budget, and the calls after it carry on until none are left. A thread
+     * never waits for another one doing so, and the CacheManager and its
+     * thread are not created for this cache.
+     * <p>
+     * Expired entries are only removed while the cache is used, so one that
+     * is left alone keeps them until {@link #flush()} is called. They are
+     * never returned by get() either way.
      * 
-     * @return <code>Object</code> - A cache object containing the key and value
-     *         objects
+     * @param state Whether the calling threads maintain the cache
      */
-    public E remove(Object key) {
-        if (key == null)
-            return null;
-
-        if (log.isDebugEnabled())
-            log.debug("#CACHE# removing item " + key);
-
-        CacheEntry tmp = (CacheEntry) entryMap.remove(key);
-        if (entryMap.size() == 0)
-            stopHandler();
-        if (tmp != null)
-            return tmp.getValue();
-        else
-            return null;
+    public synchronized void setAmortizedMaintenance(boolean state) {
+        amortized = state;
+        nextMaintenance = ticker.read() + checkSeconds * 1000L;
+        if (state && registered) {
+            registered = false;
+            CacheManager.unregister(sweepable);
+        } else if (!state && !entryMap.isEmpty()) {
+            startHandler();
+        }
     }
 
-    /* End of remove( Object ) method */
-
     /**
-     * Removes all objects from the Cache
+     * Returns whether the cache is maintained by the threads that use it
+     * 
+     * @return <code>boolean</code> - true if the calling threads maintain the cache
      */
-    public void removeAll() {
-        entryMap.clear();
-        stopHandler();
+    public boolean isAmortizedMaintenance() {
+        return amortized;
     }
 
-    /* Used to get the cache handler up and going */
-    private synchronized void startHandler() {
-        // Register this Cache
-        if (log.isDebugEnabled()) log.debug("#CACHE# register");
-        CacheManager.getInstance().registerCache(this);
-    }
+    /*
+     * Removes a batch of expired entries if the check interval has passed or
+     * the last batch did not get through them all. Only one thread does so at
+     * a time, and the others go on without waiting for it.
+     */
+    private void maintain(long now) {
+        if (drainStatus == IDLE && now < nextMaintenance)
+            return;
+        if (!evictionLock.tryLock())
+            return;
 
-    /* Used to terminate the Cache Handler thread */
-    private synchronized void stopHandler() {
-        if (log.isDebugEnabled()) log.debug("#CACHE# unregister");
-        CacheManager.getInstance().unregisterCache(this);
+        try {
+            drainStatus = PROCESSING;
+            nextMaintenance = now + checkSeconds * 1000L;
+            boolean more = sweep(true);
+            DRAIN_STATUS.compareAndSet(this, PROCESSING, more ? REQUIRED : IDLE);
+        } finally {
+            evictionLock.unlock();
+        }
     }
 
     /**
-     * Returns the current size of the cache HashTable
+     * Sets how much work each sweep by the CacheManager may do while holding
+     * the lock that writes to a bounded cache, or to one whose reads reset the
+     * timeout, also need. A sweep that reaches either limit stops and the
+     * CacheManager sweeps the cache again shortly after, so expiring a large
+     * number of entries is spread out rather than blocking other threads.
+     * Calling {@link #flush()} always removes every expired entry.
      * 
-     * @return <code>int</code> - The number of items in cache
+     * @param maxEntries Most entries to visit in each sweep
+     * @param maxTime Most time to spend in each sweep, to microsecond precision
      */
-    public int size() {
-        return entryMap.size();
-    }
+    public void setSweepBudget(int maxEntries, Duration maxTime) {
+        if (maxEntries <= 0 || maxTime == null || maxTime.isNegative() || maxTime.isZero())
+            throw new IllegalArgumentException("The sweep budget of a Cache must be greater than zero");
 
-    /* End of size() method */
+        this.sweepMaxEntries = maxEntries;
+        this.sweepMaxNanos = maxTime.toNanos();
+    }
 
     /**
-     * Returns an enumeration object for the cache table allowing traversing of
-     * all cache items.
+     * Returns the most entries each sweep by the CacheManager may visit
      * 
-     * @return <code>Enumeration</code> - Enumeration object for the cache table
+     * @return <code>int</code> - the number of entries
      */
-    // @SuppressWarnings("unchecked")
-    public Enumeration<E> elements() {
-        return new CacheEnumeration(this);
+    public int getSweepMaxEntries() {
+        return sweepMaxEntries;
     }
 
-    /* End of elements() method */
-
     /**
-     * Returns an enumeration object for the cache table allowing traversing of
-     * all keys.
+     * Returns the most time each sweep by the CacheManager may take
      * 
-     * @return <code>Enumeration</code> - Enumeration object for the keys
+     * @return <code>Duration</code> - the time
      */
-    public Enumeration<F> keys() {
-        return entryMap.keys();
+    public Duration getSweepMaxTime() {
+        return Duration.ofNanos(sweepMaxNanos);
     }
 
-    public void clear() {
-        entryMap.clear();
+    /**
+     * Returns the maximum number of entries the cache will hold
+     * 
+     * @return <code>long</code> - maximum size, or -1 if the cache is unbounded
+     */
+    public long getMaximumSize() {
+        return maximumSize;
     }
 
-    public boolean containsKey(Object key) {
-        return entryMap.containsKey(key);
+    /**
+     * Returns whether the cache evicts entries when it exceeds a maximum size
+     */
+    private boolean evicts() {
+        return maximumSize != UNBOUNDED;
     }
 
-    public boolean isEmpty() {
-        return entryMap.isEmpty();
+    /**
+     * Clears the cache of any inactive objects. Only the entries scheduled to
+     * expire since the last flush are visited, so the cost depends on the
+     * number of expired entries rather than the size of the cache.
+     * <p>
+     * The expired entries are found while holding the eviction lock and are
+     * removed from the map after it is released. When there are many of them
+     * they are removed in parallel, on the CacheManager's sweepers if it is
+     * flushing the cache or the common ForkJoinPool otherwise.
+     * <p>
+     * With sampled expiry the map is sampled until few of the entries sampled
+     * have expired, visiting each entry at most once.
+     */
+    public void flush() {
+        sweep(false);
     }
 
-    public Set<F> keySet() {
-        return entryMap.keySet();
+    /* End of flush() method */
+
+    /*
+     * Removes expired entries within the sweep budget, picking up where the
+     * previous sweep stopped. The write queue and the access order are
+     * drained from their heads, so those are the cursor, and the timer wheel
+     * is left at the bucket it stopped in. Returns true if the budget ran out
+     * before all of the expired entries were removed. Called by the
+     * CacheManager through the cache's Sweepable.
+     */
+    boolean sweep() {
+        return sweep(true);
     }
 
-    public void putAll(Map<? extends F, ? extends E> t) {
+    /* End of sweep() method */
+
+    private boolean sweep(boolean budget) {
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# Flushing cache...");
+
+        int expired;
+        boolean exhausted;
+        List<CacheEntry> removals;
+        long now = ticker.read();
+        evictionLock.lock();
+        try {
+            startBudget(budget);
+
+            if (sampled) {
+                expired = expireSampled(now);
+            } else {
+                drainReadBuffer();
+                expired = drainWriteQueue(now);
+                if (resetCache && expiry == null)
+                    expired += expireAfterAccess(now);
+                expired += timerWheel.advance(now, expirer);
+            }
 
-        for (F key : t.keySet()) {
-            E val = t.get(key);
-            put(key, val);
+            exhausted = budgetExhausted;
+            removals = expiredEntries;
+            expiredEntries = null;
+        } finally {
+            evictionLock.unlock();
         }
+
+        if (removals != null)
+            removeExpired(removals);
+
+        DiskOverflow<F, E> disk = overflow;
+        if (disk != null)
+            expired += disk.flush(now);
+
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# Flushed " + expired + " items");
+
+        // Unregisters once empty, so the CacheManager stops sweeping it
+        if (registered && entryMap.isEmpty())
+            stopHandler();
+        return exhausted;
+    }
+
+    /* Starts the budget of a sweep. Called while holding the eviction lock. */
+    private void startBudget(boolean budget) {
+        budgeted = budget;
+        budgetExhausted = false;
+        budgetEntries = sweepMaxEntries;
+        budgetDeadline = System.nanoTime() + sweepMaxNanos;
+    }
+
+    /*
+     * Counts an entry against the budget of the sweep, returning false once
+     * it has run out. The time is checked every 64 entries. Called while
+     * holding the eviction lock.
+     */
+    private boolean withinBudget() {
+        if (!budgeted)
+            return true;
+        if (budgetExhausted)
+            return false;
+
+        if (--budgetEntries < 0 || ((budgetEntries & 63) == 0 && System.nanoTime() - budgetDeadline > 0)) {
+            budgetExhausted = true;
+            return false;
+        }
+        return true;
+    }
+
+    /* Returns the timeout of an entry in milliseconds */
+    private long getTimeoutMillis() {
+        return timeoutSeconds * 1000L;
+    }
+
+    /*
+     * Removes the expired entries from the head of the write queue, stopping at
+     * the first one that has not expired as every entry after it was written
+     * later. Entries that were replaced or removed are dropped along the way,
+     * as are the extra places of an entry queued twice by racing updates. An
+     * entry updated while it was queued has been written since it took its
+     * place, so it is moved to the end instead of stopping the drain. If
+     * reads now reset the timeout the write order no longer holds, so the
+     * entries are moved to the timer wheel instead. Called while holding the
+     * eviction lock, which makes this the queue's only consumer.
+     */
+    private int drainWriteQueue(long now) {
+        int expired = 0;
+
+        CacheEntry entry;
+        while ((entry = writeQueue.peek()) != null && withinBudget()) {
+            if (entry.retired || entry.queued > 1) {
+                dequeue();
+            } else if (resetCache) {
+                dequeue();
+                entry.variableTime = entry.expirationTime();
+                timerWheel.schedule(entry);
+            } else if (entry.expirationTime() < now) {
+                dequeue();
+                if (expireEntry(entry, now))
+                    expired++;
+            } else if (entry.rewritten) {
+                // Queued again first, so an update meanwhile finds it queued
+                entry.rewritten = false;
+                enqueue(entry);
+                dequeue();
+            } else {
+                break;
+            }
+        }
+        return expired;
+    }
+
+    /* Adds an entry to the write queue */
+    private void enqueue(CacheEntry entry) {
+        QUEUED.incrementAndGet(entry);
+        writeQueue.offer(entry);
+    }
+
+    /* Removes the head of the write queue. Called while holding the eviction lock. */
+    private void dequeue() {
+        QUEUED.decrementAndGet(writeQueue.poll());
+    }
+
+    /*
+     * Removes the expired entries from the least recently used end of each
+     * access order deque, stopping at the first one that has not expired.
+     * Entries with their own lifetime are passed over, as the timer wheel
+     * tracks them. Called while holding the eviction lock.
+     */
+    private int expireAfterAccess(long now) {
+        int expired = expireAfterAccess(windowDeque, now);
+        if (evicts()) {
+            expired += expireAfterAccess(probationDeque, now);
+            expired += expireAfterAccess(protectedDeque, now);
+        }
+        return expired;
+    }
+
+    private int expireAfterAccess(AccessOrderDeque<CacheEntry> deque, long now) {
+        int expired = 0;
+        long timeout = getTimeoutMillis();
+
+        CacheEntry entry = deque.peekFirst();
+        while (entry != null && now - entry.timestamp > timeout && withinBudget()) {
+            CacheEntry next = entry.getNextInAccessOrder();
+            if (entry.getNextInVariableOrder() == null) {
+                if (!expireEntry(entry, now))
+                    break;
+                expired++;
+            }
+            entry = next;
+        }
+        return expired;
+    }
+
+    /*
+     * Expires the entries found in samples taken from the cursor, taking
+     * samples while more than the threshold of the last one had expired and
+     * until every entry in the map has been sampled. Called while holding the
+     * eviction lock.
+     */
+    private int expireSampled(long now) {
+        int expired = 0;
+        int unsampled = entryMap.size();
+        while (unsampled > 0) {
+            int count = 0;
+            int found = 0;
+            while (count < sampleSize && withinBudget()) {
+                if (sampleCursor == null || !sampleCursor.hasNext()) {
+                    sampleCursor = entryMap.values().iterator();
+                    if (!sampleCursor.hasNext())
+                        break;
+                }
+
+                CacheEntry entry = sampleCursor.next();
+                count++;
+                if (!entry.retired && entry.expirationTime() < now && expireEntry(entry, now))
+                    found++;
+            }
+
+            expired += found;
+            unsampled -= count;
+            if (count == 0 || found <= sampleThreshold * count)
+                break;
+        }
+        return expired;
+    }
+
+    /*
+     * Retires an entry whose scheduled time on the timer wheel has passed and
+     * queues it to be removed from the map once the flush releases the lock,
+     * or updates its scheduled time if it was read since it was scheduled.
+     * Called while holding the eviction lock.
+     */
+    private boolean expireEntry(CacheEntry entry, long now) {
+        if (entry.retired)
+            return true;
+
+        if (!retireIfExpired(entry, now)) {
+            entry.variableTime = entry.expirationTime();
+            return false;
+        }
+
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# Removing item " + entry.key + ": " + entry.timestamp + "-" + now);
+
+        unlink(entry);
+        if (expiredEntries == null)
+            expiredEntries = new ArrayList<CacheEntry>();
+        expiredEntries.add(entry);
+        return true;
+    }
+
+    /*
+     * Removes retired entries from the map if they are still mapped to their
+     * keys, splitting a large number of them into parallel tasks
+     */
+    private void removeExpired(List<CacheEntry> entries) {
+        if (entries.size() <= PARALLEL_REMOVAL) {
+            for (CacheEntry entry : entries)
+                removeEntry(entry);
+        } else {
+            // Forks into the pool running the flush, or the common pool
+            new RemoveTask(entries, 0, entries.size()).invoke();
+        }
+    }
+
+    /* Removes a range of retired entries from the map, halving it until it is small enough */
+    private final class RemoveTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<CacheEntry> entries;
+        private final int from;
+        private final int to;
+
+        RemoveTask(List<CacheEntry> entries, int from, int to) {
+            this.entries = entries;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from <= PARALLEL_REMOVAL) {
+                for (int i = from; i < to; i++)
+                    removeEntry(entries.get(i));
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RemoveTask(entries, from, middle), new RemoveTask(entries, middle, to));
+            }
+        }
+    }
+
+    /*
+     * Marks an entry as retired if it has expired, returning whether it is
+     * retired. The expiration time is checked while holding the entry's
+     * update lock, so an entry whose lifetime was just renewed by a put is
+     * never expired.
+     */
+    private boolean retireIfExpired(CacheEntry entry, long now) {
+        lockEntry(entry);
+        try {
+            if (!entry.retired && entry.expirationTime() < now)
+                entry.retired = true;
+            return entry.retired;
+        } finally {
+            unlockEntry(entry);
+        }
+    }
+
+    /* Spins until the entry's update lock is acquired, which is only held for a few writes */
+    private static void lockEntry(Cache<?, ?>.CacheEntry entry) {
+        while (!UPDATING.compareAndSet(entry, 0, 1))
+            Thread.yield();
+    }
+
+    private static void unlockEntry(Cache<?, ?>.CacheEntry entry) {
+        UPDATING.set(entry, 0);
+    }
+
+    /*
+     * Removes an entry that a read found to have expired, but only if it is
+     * still the one mapped to its key and was not renewed by a concurrent put.
+     * Returns false if the entry turned out to be live.
+     */
+    private boolean expireOnRead(CacheEntry entry, long now) {
+        if (!retireIfExpired(entry, now))
+            return false;
+
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# Removing item " + entry.key + ": " + entry.timestamp + "-" + now);
+
+        removeEntry(entry);
+        afterRemove(entry);
+        if (registered && entryMap.isEmpty())
+            stopHandler();
+        return true;
+    }
+
+    /**
+     * Caches the passed item, identifying it by the passed key value.
+     * 
+     * @param key Object Key object used to identify the property
+     * @param value Object Value object used to hold the property value
+     * 
+     * @return <code>Object</code> - A cache object containing the key and value
+     *         objects
+     */
+    public E put(F key, E value) {
+        
+        if (key == null) return null;
+
+        long now = ticker.read();
+        if (expiry == null)
+            return put(key, value, getTimeoutMillis(), false, now);
+
+        CacheEntry prior = entryMap.get(key);
+        long duration = (prior == null)
+                ? expiry.expireAfterCreate(key, value, now)
+                : expiry.expireAfterUpdate(key, value, now, prior.expirationTime() - now);
+        return put(key, value, duration, true, now);
+    }
+
+    /* End of put( Object, Object ) method */
+
+    /**
+     * Caches the passed item with its own lifetime, identifying it by the
+     * passed key value. If the reset cache flag is set to true, reading the
+     * item resets its lifetime.
+     * 
+     * @param key Object Key object used to identify the property
+     * @param value Object Value object used to hold the property value
+     * @param ttl How long the item lives for, to millisecond precision
+     * 
+     * @return <code>Object</code> - A cache object containing the key and value
+     *         objects
+     */
+    public E put(F key, E value, Duration ttl) {
+
+        if (key == null) return null;
+
+        if (ttl == null)
+            throw new IllegalArgumentException("You may not have a null time to live in a Cache object");
+
+        return put(key, value, toMillis(ttl), true, ticker.read());
+    }
+
+    /* Converts the time to live to milliseconds, clamping one too large for a long */
+    private static long toMillis(Duration ttl) {
+        try {
+            return ttl.toMillis();
+        } catch (ArithmeticException e) {
+            return ttl.isNegative() ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+    }
+
+    /* End of put( Object, Object, Duration ) method */
+
+    /*
+     * Caches the item to expire the number of milliseconds after it was put or
+     * reset. A live entry for the key is updated in place, so a new entry is
+     * only allocated when the key is inserted.
+     */
+    @SuppressWarnings("unchecked")
+    private E put(F key, E value, long duration, boolean variable, long now) {
+
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# adding item " + key + ": " + value);
+        if (amortized)
+            maintain(now);
+
+        CacheEntry prior = entryMap.get(key);
+        Object old = (prior != null) ? update(prior, value, duration, variable, now) : NOT_UPDATED;
+        if (old == NOT_UPDATED) {
+            CacheEntry item = new CacheEntry(key, value, now, duration);
+            CacheEntry tmp = entryMap.put(key, item);
+            old = (tmp != null) ? retire(tmp) : null;
+            afterWrite(item, tmp, variable);
+        }
+
+        // Checked on updates too, as a cache that only updates its items has
+        // to register again after the CacheManager was shut down
+        if (!registered && !amortized)
+            startHandler();
+        return (E) old;
+    }
+
+    /*
+     * Replaces the value and lifetime of a live entry in place, returning
+     * the prior value. Returns NOT_UPDATED if the entry has expired, was
+     * removed or now has its expiration ordered differently, in which case a
+     * new entry has to be put instead. The value is swapped under the entry
+     * lock, which every removal takes to retire the entry, so a removal
+     * either comes first and a new entry is put, or comes after and sees the
+     * value.
+     */
+    private Object update(CacheEntry entry, E value, long duration, boolean variable, long now) {
+        boolean writeOrder = !variable && !resetCache;
+        if (entry.expirationOrder != expirationOrder(variable, writeOrder))
+            return NOT_UPDATED;
+
+        Object old;
+        lockEntry(entry);
+        try {
+            if (entry.retired || entry.expirationTime() < now)
+                return NOT_UPDATED;
+
+            // The lifetime is written before the value, so a reader that sees
+            // the new value never finds it expired
+            entry.duration = duration;
+            entry.writeTime = now;
+            entry.timestamp = now;
+            old = VALUE.getAndSet(entry, value);
+        } finally {
+            unlockEntry(entry);
+        }
+
+        // A removal that has taken the entry out of the map but not yet
+        // retired it returns the updated value, so there is nothing to reorder
+        if (entryMap.get(entry.key) == entry)
+            afterUpdate(entry, variable, writeOrder);
+        return old;
+    }
+
+    /**
+     * Caches the passed item only if the key has no item that is still live,
+     * as a single atomic operation.
+     * 
+     * @param key Object Key object used to identify the property
+     * @param value Object Value object used to hold the property value
+     * 
+     * @return <code>Object</code> - The live item already cached for the key,
+     *         or null if the passed item was cached
+     */
+    @Override
+    public E putIfAbsent(F key, E value) {
+
+        if (key == null) return null;
+
+        long now = ticker.read();
+
+        // An item that overflowed to disk is still present
+        DiskOverflow<F, E> disk = overflow;
+        if (disk != null && !entryMap.containsKey(key))
+            promote(disk, key, now);
+
+        long duration = (expiry == null) ? getTimeoutMillis() : expiry.expireAfterCreate(key, value, now);
+
+        for (;;) {
+            CacheEntry item = new CacheEntry(key, value, now, duration);
+
+            CacheEntry tmp = entryMap.putIfAbsent(key, item);
+            if (tmp == null) {
+                if (log.isDebugEnabled())
+                    log.debug("#CACHE# adding item " + key + ": " + value);
+
+                afterWrite(item, null, expiry != null);
+                if (!registered && !amortized)
+                    startHandler();
+                return null;
+            }
+
+            if (tmp.expirationTime() >= now)
+                return tmp.getValue();
+
+            // Replace the expired item that has not been flushed yet, unless a
+            // put has just renewed it
+            if (!retireIfExpired(tmp, now))
+                return tmp.getValue();
+            removeEntry(tmp);
+            afterRemove(tmp);
+        }
+    }
+
+    /* End of putIfAbsent( Object, Object ) method */
+
+    /**
+     * Replaces the cached item specified by the passed key object only if it
+     * is currently cached with the old value, as a single atomic operation.
+     * The replaced item's lifetime starts again as if it had just been put.
+     * 
+     * @param key Object Key object used to identify the property
+     * @param oldValue Object Value object expected to be cached for the key
+     * @param newValue Object Value object to cache for the key
+     * 
+     * @return <code>boolean</code> - true if the item was replaced
+     */
+    @Override
+    public boolean replace(F key, final E oldValue, E newValue) {
+
+        if (key == null) return false;
+
+        final CacheEntry tmp = entryMap.get(key);
+        if (tmp == null)
+            return false;
+
+        E current = tmp.getValue();
+        if (current != oldValue && (current == null || !current.equals(oldValue)))
+            return false;
+
+        long now = ticker.read();
+        long duration = (expiry == null)
+                ? tmp.duration
+                : expiry.expireAfterUpdate(key, newValue, now, tmp.expirationTime() - now);
+        final CacheEntry item = new CacheEntry(key, newValue, now, duration);
+
+        final boolean[] replaced = new boolean[1];
+        entryMap.computeIfPresent(key, new BiFunction<F, CacheEntry, CacheEntry>() {
+            public CacheEntry apply(F k, CacheEntry entry) {
+                if (entry != tmp || !retireIfValue(entry, oldValue))
+                    return entry;
+                replaced[0] = true;
+                return item;
+            }
+        });
+        if (!replaced[0])
+            return false;
+
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# replacing item " + key + ": " + newValue);
+
+        afterWrite(item, tmp, expiry != null || item.duration != getTimeoutMillis());
+        if (!registered && !amortized)
+            startHandler();
+        return true;
+    }
+
+    /* End of replace( Object, Object, Object ) method */
+
+    /**
+     * Retrieves the cached item specified by the passed key object. If the
+     * reset cache flag is set to true, it will also reset the timestamp to
+     * prevent the item from timing out.
+     * 
+     * @param key Object Key object used to identify the property
+     * 
+     * @return <code>Object</code> - A cache object containing the key and value
+     *         objects
+     */
+    public E get(Object key) {
+        CacheEntry tmp = getEntry(key);
+        if (tmp == null)
+            return null;
+
+        return tmp.getValue();
+    }
+
+    /* End of get( Object ) method */
+
+    /**
+     * Retrieves the cached item specified by the passed key object. If the
+     * reset cache flag is set to true, it will also reset the timestamp to
+     * prevent the item from timing out.
+     * <p>
+     * The map is probed once and the entry's expiration time compared once.
+     * An expired entry is removed only if it is still the one mapped to the
+     * key, and the timestamp is written at most once.
+     * 
+     * @param key Object Key object used to identify the property
+     * 
+     * @return <code>Object</code> - A cache object containing the key and value
+     *         objects
+     */
+    public CacheEntry getEntry(Object key) {
+        if (key == null)
+            return null;
+
+        return getEntry(key, ticker.read());
+    }
+
+    /* End of getEntry( Object ) method */
+
+    /* Retrieves the cached item as of the given time, read once by the caller */
+    CacheEntry getEntry(Object key, long now) {
+        if (key == null)
+            return null;
+
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# getting item " + key);
+
+        if (amortized)
+            maintain(now);
+
+        CacheEntry tmp = entryMap.get(key);
+        if (tmp != null && tmp.expirationTime() < now && expireOnRead(tmp, now))
+            tmp = null;
+
+        if (tmp == null) {
+            DiskOverflow<F, E> disk = overflow;
+            if (disk == null)
+                return null;
+            tmp = promote(disk, key, now);
+            if (tmp == null)
+                return null;
+        }
+
+        // Let the expiry policy decide the lifetime, otherwise only reset the
+        // timestamp if the reset cache flag is true
+        if (expiry != null) {
+            long remaining = tmp.expirationTime() - now;
+            long duration = expiry.expireAfterRead(tmp.key, tmp.value, now, remaining);
+            if (duration != remaining) {
+                // Both under the entry lock, so that a concurrent sweep or put
+                // never sees the new duration paired with the old timestamp
+                lockEntry(tmp);
+                try {
+                    tmp.duration = duration;
+                    tmp.timestamp = now;
+                } finally {
+                    unlockEntry(tmp);
+                }
+            }
+        } else if (resetCache && tmp.timestamp != now) {
+            // Skipped when unchanged, which is common with a coarse ticker. An
+            // ordered write is enough, as a sweep racing with this read could
+            // miss a volatile write just the same.
+            TIMESTAMP.lazySet(tmp, now);
+        }
+
+        if (!sampled && (resetCache || evicts() || expiry != null))
+            afterRead(tmp);
+
+        return tmp;
+    }
+
+    /* End of get( Object ) method */
+
+    /*
+     * Moves an item that overflowed to disk back into the cache, keeping its
+     * expiration time. Returns null if it is not on disk or has expired.
+     */
+    private CacheEntry promote(DiskOverflow<F, E> disk, Object key, long now) {
+        DiskOverflow.Spilled<E> spilled = disk.take(key, now);
+        if (spilled == null)
+            return null;
+
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# promoting item " + key + " from disk");
+
+        @SuppressWarnings("unchecked")
+        F k = (F) key;
+        CacheEntry item = new CacheEntry(k, spilled.value, spilled.expirationTime - spilled.duration,
+                spilled.duration);
+
+        CacheEntry tmp = entryMap.putIfAbsent(k, item);
+        if (tmp != null)
+            return tmp;
+
+        afterWrite(item, null, true);
+        if (!registered && !amortized)
+            startHandler();
+        return item;
+    }
+
+    /**
+     * Removes the cached item specified by the passed key object from the cache
+     * 
+     * @param key Object Key object used to identify the property
+     * 
+     * @return <code>Object</code> - A cache object containing the key and value
+     *         objects
+     */
+    public E remove(Object key) {
+        if (key == null)
+            return null;
+
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# removing item " + key);
+
+        CacheEntry tmp = entryMap.remove(key);
+        E old = null;
+        if (tmp != null) {
+            old = retire(tmp);
+            afterRemove(tmp);
+        }
+        DiskOverflow<F, E> disk = overflow;
+        if (disk != null)
+            disk.remove(key);
+        if (registered && entryMap.isEmpty())
+            stopHandler();
+        return old;
+    }
+
+    /* End of remove( Object ) method */
+
+    /**
+     * Removes the cached item specified by the passed key object only if it
+     * is currently cached with the passed value, as a single atomic operation.
+     * 
+     * @param key Object Key object used to identify the property
+     * @param value Object Value object expected to be cached for the key
+     * 
+     * @return <code>boolean</code> - true if the item was removed
+     */
+    @Override
+    public boolean remove(Object key, final Object value) {
+        if (key == null)
+            return false;
+
+        final CacheEntry tmp = entryMap.get(key);
+        if (tmp == null)
+            return false;
+
+        E current = tmp.getValue();
+        if (current != value && (current == null || !current.equals(value)))
+            return false;
+
+        final boolean[] removed = new boolean[1];
+        entryMap.computeIfPresent(tmp.key, new BiFunction<F, CacheEntry, CacheEntry>() {
+            public CacheEntry apply(F k, CacheEntry entry) {
+                if (entry != tmp || !retireIfValue(entry, value))
+                    return entry;
+                removed[0] = true;
+                return null;
+            }
+        });
+        if (!removed[0])
+            return false;
+
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# removing item " + key);
+
+        afterRemove(tmp);
+        if (registered && entryMap.isEmpty())
+            stopHandler();
+        return true;
+    }
+
+    /* End of remove( Object, Object ) method */
+
+    /*
+     * Retires the entry if it still holds the value, returning false if it
+     * does not. The value is compared under the entry lock, so a put() cannot
+     * update the entry in place between the comparison and its replacement
+     * or removal, and one that comes after finds it retired and puts a new
+     * entry instead. Called while computing the mapping of the entry's key.
+     */
+    private boolean retireIfValue(CacheEntry entry, Object value) {
+        lockEntry(entry);
+        try {
+            if (entry.retired)
+                return false;
+
+            Object current = entry.value;
+            if (current != value && (current == null || !current.equals(value)))
+                return false;
+
+            entry.retired = true;
+            return true;
+        } finally {
+            unlockEntry(entry);
+        }
+    }
+
+    /*
+     * Retires an entry that was taken out of the map, returning its value.
+     * Done under the entry lock, so the value of a put() that updated the
+     * entry in place just before is the one returned, and a put() that comes
+     * after finds it retired and puts a new entry instead.
+     */
+    private E retire(CacheEntry entry) {
+        lockEntry(entry);
+        try {
+            entry.retired = true;
+            return entry.value;
+        } finally {
+            unlockEntry(entry);
+        }
+    }
+
+    /*
+     * Removes the entry from the map only if it is still the one mapped to its
+     * key. The map's own conditional remove compares entries by their key and
+     * value, which could remove a newer entry holding an equal value.
+     */
+    private boolean removeEntry(final CacheEntry entry) {
+        final boolean[] removed = new boolean[1];
+        entryMap.computeIfPresent(entry.key, new BiFunction<F, CacheEntry, CacheEntry>() {
+            public CacheEntry apply(F key, CacheEntry current) {
+                if (current != entry)
+                    return current;
+                removed[0] = true;
+                return null;
+            }
+        });
+        return removed[0];
+    }
+
+    /**
+     * Removes all objects from the Cache
+     */
+    public void removeAll() {
+        clear();
+        if (registered)
+            stopHandler();
+    }
+
+    /*
+     * Records the read of an entry in the read buffer, replaying the buffer
+     * if it has filled up and no other thread is already doing so
+     */
+    private void afterRead(CacheEntry entry) {
+        if (readBuffer.offer(entry) == ReadBuffer.FULL && evictionLock.tryLock()) {
+            try {
+                drainReadBuffer();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /* Replays the recorded reads. Called while holding the eviction lock. */
+    private void drainReadBuffer() {
+        readBuffer.drainTo(onRead);
+    }
+
+    /*
+     * Records the read of an entry with the W-TinyLFU policy and, if reads
+     * reset the timeout, moves it in the access order or on the timer wheel
+     */
+    private void onRead(CacheEntry entry) {
+        if (entry.retired)
+            return;
+
+        if (evicts()) {
+            sketch.increment(entry.key);
+            onAccess(entry);
+        } else if (resetCache) {
+            onAccess(entry);
+        }
+
+        if (resetCache || expiry != null) {
+            entry.variableTime = entry.expirationTime();
+            timerWheel.reschedule(entry);
+        }
+    }
+
+    /*
+     * Queues a new entry in write order, links it in access order or, if it
+     * has its own lifetime, schedules it on the timer wheel for expiration and
+     * adds it to the W-TinyLFU policy, replacing the prior entry if there was
+     * one. When reads do not reset the timeout and the cache is unbounded no
+     * lock is taken, as a replaced entry is simply dropped when it reaches the
+     * head of the write queue or its time on the timer wheel comes up.
+     */
+    private void afterWrite(CacheEntry entry, CacheEntry prior, boolean variable) {
+        boolean writeOrder = !variable && !resetCache;
+        if (afterWriteWithoutLock(entry, prior, variable, writeOrder))
+            return;
+
+        evictionLock.lock();
+        try {
+            drainReadBuffer();
+            onWrite(entry, prior, variable, writeOrder);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /*
+     * Queues an entry kept in write order, returning true if that is all the
+     * write needs, as with sampled expiry, so the eviction lock is not taken
+     */
+    private boolean afterWriteWithoutLock(CacheEntry entry, CacheEntry prior, boolean variable,
+            boolean writeOrder) {
+        if (writeOrder && !sampled)
+            enqueue(entry);
+        entry.expirationOrder = expirationOrder(variable, writeOrder);
+
+        if (sampled || (writeOrder && !evicts())) {
+            if (prior != null)
+                prior.retired = true;
+            return true;
+        }
+        return false;
+    }
+
+    /* Applies a write to the policy. Called while holding the eviction lock. */
+    private void onWrite(CacheEntry entry, CacheEntry prior, boolean variable, boolean writeOrder) {
+        // Done under the lock so an eviction of the prior entry cannot spill it afterwards
+        DiskOverflow<F, E> disk = overflow;
+        if (disk != null)
+            disk.remove(entry.key);
+
+        byte queueType = WINDOW;
+        if (prior != null) {
+            if (prior.queueType != 0)
+                queueType = prior.queueType;
+            prior.retired = true;
+            unlink(prior);
+        }
+
+        // The entry may already have been removed by a concurrent call
+        if (!entry.retired) {
+            if (evicts() || (resetCache && !variable))
+                link(entry, queueType);
+
+            // Also used if reads stopped resetting the timeout after the entry was written
+            if (variable || (!writeOrder && !resetCache)) {
+                entry.variableTime = entry.expirationTime();
+                timerWheel.schedule(entry);
+            }
+
+            if (evicts()) {
+                sketch.increment(entry.key);
+                evictEntries();
+            }
+        }
+    }
+
+    /* Returns how an entry written with the lifetime has its expiration ordered */
+    private static byte expirationOrder(boolean variable, boolean writeOrder) {
+        return variable ? VARIABLE_ORDER : writeOrder ? WRITE_ORDER : ACCESS_ORDER;
+    }
+
+    /*
+     * Moves an entry that was updated in place to the end of the write
+     * queue, access order or its new time on the timer wheel, and records
+     * the write with the W-TinyLFU policy. An entry still in the write queue
+     * is only marked, and moved once it reaches the head, so a key updated
+     * often between sweeps holds a single place. Like a new entry, no lock
+     * is taken when reads do not reset the timeout and the cache is unbounded.
+     */
+    private void afterUpdate(CacheEntry entry, boolean variable, boolean writeOrder) {
+        if (sampled)
+            return;
+        if (writeOrder) {
+            if (entry.queued > 0)
+                entry.rewritten = true;
+            else
+                enqueue(entry);
+            if (!evicts())
+                return;
+        }
+
+        evictionLock.lock();
+        try {
+            drainReadBuffer();
+            if (entry.retired)
+                return;
+
+            if (evicts()) {
+                sketch.increment(entry.key);
+                onAccess(entry);
+            } else if (!writeOrder && !variable) {
+                onAccess(entry);
+            }
+
+            // Only moved if it is already scheduled, otherwise the write that
+            // added the entry has yet to schedule it
+            if (variable) {
+                entry.variableTime = entry.expirationTime();
+                timerWheel.reschedule(entry);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /* Removes an entry from the W-TinyLFU policy */
+    private void afterRemove(CacheEntry entry) {
+        // Nothing to unlink it from
+        if (sampled) {
+            entry.retired = true;
+            return;
+        }
+
+        evictionLock.lock();
+        try {
+            entry.retired = true;
+            unlink(entry);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /* Moves an accessed entry towards the protected segment */
+    private void onAccess(CacheEntry entry) {
+        switch (entry.queueType) {
+            case WINDOW:
+                windowDeque.moveToBack(entry);
+                break;
+            case PROBATION:
+                probationDeque.remove(entry);
+                entry.queueType = PROTECTED;
+                protectedDeque.addLast(entry);
+                protectedSize++;
+                demoteFromProtected();
+                break;
+            case PROTECTED:
+                protectedDeque.moveToBack(entry);
+                break;
+            default:
+                // Not yet linked or already removed
+        }
+    }
+
+    /* Demotes the least recently used protected entries once the segment is full */
+    private void demoteFromProtected() {
+        while (protectedSize > protectedMaximum) {
+            CacheEntry demoted = protectedDeque.pollFirst();
+            if (demoted == null)
+                break;
+            protectedSize--;
+            demoted.queueType = PROBATION;
+            probationDeque.addLast(demoted);
+        }
+    }
+
+    /*
+     * Moves entries that overflow the window into the main space, where each
+     * one competes with the main space's least recently used entry and only
+     * the more frequently used of the two is retained.
+     */
+    private void evictEntries() {
+        while (windowSize > windowMaximum) {
+            CacheEntry candidate = windowDeque.pollFirst();
+            windowSize--;
+            candidate.queueType = PROBATION;
+            probationDeque.addLast(candidate);
+            mainSize++;
+
+            if (windowSize + mainSize <= maximumSize)
+                continue;
+
+            CacheEntry victim = probationDeque.peekFirst();
+            if (victim == candidate)
+                victim = protectedDeque.peekFirst();
+
+            if (victim == null || !admit(candidate, victim)) {
+                evict(candidate);
+            } else {
+                evict(victim);
+            }
+        }
+
+        // Only occurs when the window is disabled by a zero maximum size
+        while (windowSize + mainSize > maximumSize) {
+            CacheEntry victim = probationDeque.peekFirst();
+            if (victim == null)
+                victim = protectedDeque.peekFirst();
+            if (victim == null)
+                victim = windowDeque.peekFirst();
+            evict(victim);
+        }
+    }
+
+    /* Returns whether the candidate should replace the victim in the main space */
+    private boolean admit(CacheEntry candidate, CacheEntry victim) {
+        return sketch.frequency(candidate.key) > sketch.frequency(victim.key);
+    }
+
+    /* Evicts the entry from both the map and the policy */
+    private void evict(CacheEntry entry) {
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# Evicting item " + entry.key);
+
+        if (removeEntry(entry)) {
+            E value = retire(entry);
+            DiskOverflow<F, E> disk = overflow;
+            if (disk != null)
+                disk.spill(entry.key, value, entry.expirationTime(), entry.duration, ticker.read());
+        }
+        entry.retired = true;
+        unlink(entry);
+    }
+
+    private void link(CacheEntry entry, byte queueType) {
+        entry.queueType = queueType;
+        switch (queueType) {
+            case PROTECTED:
+                protectedDeque.addLast(entry);
+                protectedSize++;
+                mainSize++;
+                break;
+            case PROBATION:
+                probationDeque.addLast(entry);
+                mainSize++;
+                break;
+            default:
+                windowDeque.addLast(entry);
+                windowSize++;
+        }
+    }
+
+    /* Removes the entry from the timer wheel and the W-TinyLFU policy */
+    private void unlink(CacheEntry entry) {
+        timerWheel.deschedule(entry);
+
+        switch (entry.queueType) {
+            case WINDOW:
+                windowDeque.remove(entry);
+                windowSize--;
+                break;
+            case PROBATION:
+                probationDeque.remove(entry);
+                mainSize--;
+                break;
+            case PROTECTED:
+                protectedDeque.remove(entry);
+                protectedSize--;
+                mainSize--;
+                break;
+            default:
+                // Not linked
+        }
+        entry.queueType = 0;
+    }
+
+    /* Used to get the cache handler up and going */
+    private synchronized void startHandler() {
+        if (registered || amortized)
+            return;
+        registered = true;
+
+        // Register this Cache
+        if (log.isDebugEnabled()) log.debug("#CACHE# register");
+        CacheManager.register(sweepable);
+    }
+
+    /* Used to terminate the Cache Handler thread */
+    private synchronized void stopHandler() {
+        // Cleared before the map is checked, so a concurrent put that adds an
+        // entry either sees it cleared and registers again or is seen here
+        boolean wasRegistered = registered;
+        registered = false;
+        if (!entryMap.isEmpty()) {
+            registered = wasRegistered;
+            return;
+        }
+
+        // Never registered, as with amortized maintenance, so the
+        // CacheManager does not have to be created
+        if (!wasRegistered)
+            return;
+
+        if (log.isDebugEnabled()) log.debug("#CACHE# unregister");
+        CacheManager.unregister(sweepable);
+    }
+
+    /*
+     * Called by the CacheManager when it is shut down, so the next item put
+     * registers the cache with the manager that replaces it
+     */
+    synchronized void managerShutdown() {
+        registered = false;
+    }
+
+    /**
+     * Returns the current size of the cache HashTable
+     * 
+     * @return <code>int</code> - The number of items in cache
+     */
+    public int size() {
+        return entryMap.size();
+    }
+
+    /* End of size() method */
+
+    /**
+     * Returns an enumeration object for the cache table allowing traversing of
+     * all cache items.
+     * 
+     * @return <code>Enumeration</code> - Enumeration object for the cache table
+     */
+    // @SuppressWarnings("unchecked")
+    public Enumeration<E> elements() {
+        return new CacheEnumeration(this);
+    }
+
+    /* End of elements() method */
+
+    /**
+     * Returns an enumeration object for the cache table allowing traversing of
+     * all keys.
+     * 
+     * @return <code>Enumeration</code> - Enumeration object for the keys
+     */
+    public Enumeration<F> keys() {
+        return entryMap.keys();
+    }
+
+    public void clear() {
+        evictionLock.lock();
+        try {
+            for (CacheEntry entry : entryMap.values()) {
+                if (removeEntry(entry)) {
+                    entry.retired = true;
+                    unlink(entry);
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+
+        DiskOverflow<F, E> disk = overflow;
+        if (disk != null)
+            disk.clear();
+    }
+
+    public boolean containsKey(Object key) {
+        return entryMap.containsKey(key);
+    }
+
+    public boolean isEmpty() {
+        return entryMap.isEmpty();
+    }
+
+    public Set<F> keySet() {
+        return entryMap.keySet();
+    }
+
+    /**
+     * Caches all of the items in the passed map. The entries are written to
+     * the cache first and the eviction lock is then taken once to update the
+     * expiration and eviction order for all of them, rather than once per item.
+     * 
+     * @param t Map of the keys and values to cache
+     */
+    public void putAll(Map<? extends F, ? extends E> t) {
+
+        if (t.isEmpty())
+            return;
+
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# adding " + t.size() + " items");
+
+        long now = ticker.read();
+        boolean variable = (expiry != null);
+        boolean writeOrder = !variable && !resetCache;
+        // Pairs of written entries and the entries they replaced
+        List<CacheEntry> pending = null;
+
+        for (Map.Entry<? extends F, ? extends E> e : t.entrySet()) {
+            F key = e.getKey();
+            if (key == null)
+                continue;
+
+            E value = e.getValue();
+            long duration = getTimeoutMillis();
+            if (variable) {
+                CacheEntry prior = entryMap.get(key);
+                duration = (prior == null)
+                        ? expiry.expireAfterCreate(key, value, now)
+                        : expiry.expireAfterUpdate(key, value, now, prior.expirationTime() - now);
+            }
+            CacheEntry item = new CacheEntry(key, value, now, duration);
+
+            CacheEntry tmp = entryMap.put(key, item);
+            if (!afterWriteWithoutLock(item, tmp, variable, writeOrder)) {
+                if (pending == null)
+                    pending = new ArrayList<CacheEntry>(t.size() * 2);
+                pending.add(item);
+                pending.add(tmp);
+            }
+        }
+
+        if (pending != null) {
+            evictionLock.lock();
+            try {
+                drainReadBuffer();
+                for (int i = 0; i < pending.size(); i += 2)
+                    onWrite(pending.get(i), pending.get(i + 1), variable, writeOrder);
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+
+        if (!registered && !amortized && !entryMap.isEmpty())
+            startHandler();
+    }
+
+    /* End of putAll( Map ) method */
+
+    /**
+     * Retrieves the cached items specified by the passed keys. Keys that are
+     * not cached are left out of the returned map.
+     * 
+     * @param keys The keys of the items to retrieve
+     * 
+     * @return <code>Map</code> - The cached items, in the order of the keys
+     */
+    public Map<F, E> getAllPresent(Iterable<? extends F> keys) {
+
+        Map<F, E> result = new LinkedHashMap<F, E>();
+        for (F key : keys) {
+            CacheEntry tmp = getEntry(key);
+            if (tmp != null)
+                result.put(key, tmp.getValue());
+        }
+        return result;
+    }
+
+    /* End of getAllPresent( Iterable ) method */
+
+    /**
+     * Removes the cached items specified by the passed keys from the cache.
+     * The eviction lock is taken once to remove all of them from the
+     * expiration and eviction order.
+     * 
+     * @param keys The keys of the items to remove
+     */
+    public void invalidateAll(Iterable<?> keys) {
+
+        DiskOverflow<F, E> disk = overflow;
+        List<CacheEntry> removed = new ArrayList<CacheEntry>();
+        for (Object key : keys) {
+            if (key == null)
+                continue;
+            CacheEntry tmp = entryMap.remove(key);
+            if (tmp != null)
+                removed.add(tmp);
+            if (disk != null)
+                disk.remove(key);
+        }
+
+        if (removed.isEmpty())
+            return;
+
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# removing " + removed.size() + " items");
+
+        evictionLock.lock();
+        try {
+            for (CacheEntry entry : removed) {
+                entry.retired = true;
+                unlink(entry);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+
+        if (registered && entryMap.isEmpty())
+            stopHandler();
+    }
+
+    /* End of invalidateAll( Iterable ) method */
+
+    /* Number of snapshot records deserialized and inserted together on restore */
+    private static final int RESTORE_BATCH = 1024;
+
+    /**
+     * Saves the items in the cache that have not expired to a snapshot file,
+     * along with the time each one expires. The snapshot is written to a
+     * temporary file first and replaces the file once it is complete. Items
+     * put while the snapshot is being written may or may not be included.
+     * 
+     * @param file The snapshot file to write
+     * @param keySerializer Writes the keys as bytes
+     * @param valueSerializer Writes the values as bytes
+     * 
+     * @return <code>long</code> - The number of items written
+     * @throws IOException if the snapshot could not be written
+     */
+    public long snapshot(Path file, Serializer<? super F> keySerializer, Serializer<? super E> valueSerializer)
+            throws IOException {
+
+        long now = ticker.read();
+        CacheSnapshot.Writer writer = new CacheSnapshot.Writer(file);
+        try {
+            for (CacheEntry entry : entryMap.values()) {
+                E value = entry.value;
+                long expirationTime = entry.expirationTime();
+                if (value == null || expirationTime < now || entry.retired)
+                    continue;
+                writer.write(keySerializer.serialize(entry.key), valueSerializer.serialize(value),
+                        expirationTime, entry.duration);
+            }
+            writer.commit();
+        } finally {
+            writer.close();
+        }
+
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# Saved " + writer.count() + " items to " + file);
+
+        return writer.count();
+    }
+
+    /* End of snapshot( Path, Serializer, Serializer ) method */
+
+    /**
+     * Loads the items of a snapshot file into the cache, keeping the time each
+     * one expires. Items that expired since the snapshot was written are
+     * skipped, as are items whose key already has a value in the cache. The
+     * file is read on the calling thread while the items are deserialized and
+     * inserted in batches on the common ForkJoinPool. Use
+     * {@link #snapshotSize(Path)} to size a new cache for the snapshot.
+     * 
+     * @param file The snapshot file to read
+     * @param keySerializer Reads the keys back from bytes
+     * @param valueSerializer Reads the values back from bytes
+     * 
+     * @return <code>long</code> - The number of items restored
+     * @throws IOException if the snapshot could not be read
+     */
+    public long restore(Path file, final Serializer<? extends F> keySerializer,
+            final Serializer<? extends E> valueSerializer) throws IOException {
+
+        final long now = ticker.read();
+        final AtomicLong restored = new AtomicLong();
+        List<CompletableFuture<Void>> batches = new ArrayList<CompletableFuture<Void>>();
+
+        CacheSnapshot.Reader reader = new CacheSnapshot.Reader(file);
+        try {
+            int batchSize = (int) Math.min(RESTORE_BATCH, reader.count());
+            List<CacheSnapshot.Record> batch = new ArrayList<CacheSnapshot.Record>(batchSize);
+
+            CacheSnapshot.Record record;
+            while ((record = reader.next()) != null) {
+                if (record.expirationTime < now)
+                    continue;
+
+                batch.add(record);
+                if (batch.size() == RESTORE_BATCH) {
+                    batches.add(restoreAsync(batch, keySerializer, valueSerializer, restored));
+                    batch = new ArrayList<CacheSnapshot.Record>(RESTORE_BATCH);
+                }
+            }
+            if (!batch.isEmpty())
+                batches.add(restoreAsync(batch, keySerializer, valueSerializer, restored));
+        } finally {
+            reader.close();
+        }
+
+        try {
+            CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[batches.size()])).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# Restored " + restored.get() + " items from " + file);
+
+        return restored.get();
+    }
+
+    /* End of restore( Path, Serializer, Serializer ) method */
+
+    /**
+     * Returns the number of items in a snapshot file, which may be used as
+     * the initial capacity of a cache it is restored into.
+     * 
+     * @param file The snapshot file
+     * 
+     * @return <code>long</code> - The number of items in the snapshot
+     * @throws IOException if the file could not be read or is not a snapshot
+     */
+    public static long snapshotSize(Path file) throws IOException {
+        return CacheSnapshot.count(file);
+    }
+
+    private CompletableFuture<Void> restoreAsync(final List<CacheSnapshot.Record> batch,
+            final Serializer<? extends F> keySerializer, final Serializer<? extends E> valueSerializer,
+            final AtomicLong restored) {
+        return CompletableFuture.runAsync(new Runnable() {
+            public void run() {
+                List<CacheEntry> entries = new ArrayList<CacheEntry>(batch.size());
+                for (CacheSnapshot.Record record : batch) {
+                    CacheEntry item = new CacheEntry(keySerializer.deserialize(record.key),
+                            valueSerializer.deserialize(record.value), record.expirationTime - record.duration,
+                            record.duration);
+                    entries.add(item);
+                }
+                restored.addAndGet(restoreAll(entries));
+            }
+        });
+    }
+
+    /*
+     * Inserts restored entries whose keys have no value, keeping their
+     * expiration times. The entries are indexed on the timer wheel, as they
+     * arrive out of expiration order. The eviction lock is taken once for the
+     * batch.
+     */
+    private int restoreAll(List<CacheEntry> entries) {
+        int restored = 0;
+        List<CacheEntry> inserted = new ArrayList<CacheEntry>(entries.size());
+        for (CacheEntry item : entries) {
+            if (entryMap.putIfAbsent(item.key, item) == null) {
+                restored++;
+                // Sampled expiry has nothing to schedule
+                if (!afterWriteWithoutLock(item, null, true, false))
+                    inserted.add(item);
+            }
+        }
+
+        if (!inserted.isEmpty()) {
+            evictionLock.lock();
+            try {
+                drainReadBuffer();
+                for (CacheEntry item : inserted)
+                    onWrite(item, null, true, false);
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+
+        if (!registered && !amortized && !entryMap.isEmpty())
+            startHandler();
+        return restored;
     }
 
     public Set<Map.Entry<F, E>> entrySet() {
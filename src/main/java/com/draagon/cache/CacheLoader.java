@@ -0,0 +1,66 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+package com.draagon.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Loads the value for a key that is missing from a {@link LoadingCache}.
+ *
+ * @author Doug Mealing
+ *
+ * @param <F> The class for the key
+ * @param <E> The class for the cached value
+ */
+public interface CacheLoader<F, E> {
+
+    /**
+     * Loads the value for the key. Returning null means there is no value,
+     * and nothing is cached for the key.
+     *
+     * @param key The key to load the value for
+     * @return the value for the key, or null if there is none
+     * @throws Exception if the value could not be loaded
+     */
+    E load(F key) throws Exception;
+
+    /**
+     * Loads a new value for a key that is already cached, such as when it is
+     * refreshed. By default this is the same as loading it.
+     *
+     * @param key The key to load the value for
+     * @param oldValue The value currently cached for the key
+     * @return the new value for the key, or null if it no longer has one
+     * @throws Exception if the value could not be loaded
+     */
+    default E reload(F key, E oldValue) throws Exception {
+        return load(key);
+    }
+
+    /**
+     * Loads the values for several keys in one call, such as when a
+     * {@link LoadingCache} is asked for a batch of keys that are not cached.
+     * Keys without a value are left out of the returned map. By default each
+     * key is loaded on its own, so override this to make one round trip to the
+     * backing store.
+     *
+     * @param keys The keys to load the values for
+     * @return the values for the keys that have one
+     * @throws Exception if the values could not be loaded
+     */
+    default Map<F, E> loadAll(Set<? extends F> keys) throws Exception {
+        Map<F, E> result = new HashMap<F, E>();
+        for (F key : keys) {
+            E value = load(key);
+            if (value != null)
+                result.put(key, value);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,23 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+package com.draagon.cache;
+
+/**
+ * Thrown when a {@link CacheLoader} fails with a checked exception while
+ * loading a value for a {@link LoadingCache}. Unchecked exceptions thrown by
+ * the loader are passed through as is.
+ *
+ * @author Doug Mealing
+ */
+public class CacheLoaderException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CacheLoaderException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -1,223 +1,579 @@
 package com.draagon.cache;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 /**
  * The CacheManager is used to flush out the Cache object's entries. Based on
  * the times spent
- * 
+ * <p>
+ * The registered caches are kept in a binary heap ordered by the time each is
+ * next swept, so registering, unregistering and rescheduling a cache take
+ * O(log n) time however many caches there are. The thread waits on a
+ * condition until the first cache is due, and is signalled when a cache is
+ * scheduled ahead of it.
+ * <p>
+ * The caches that are due are flushed on a pool of sweeper threads, so a
+ * large cache does not hold up the sweeps of the others. Each cache is only
+ * flushed by one sweeper at a time and is scheduled again once its flush is
+ * done. The number of sweepers may be set with
+ * {@link #setSweeperParallelism(int)}.
+ * <p>
+ * Each sweep is a {@link Sweepable#sweep()}, which may stop early to keep
+ * from holding up the threads using the cache. A cache that stopped early is
+ * swept again after a short pause instead of waiting for its check interval.
+ * <p>
+ * The caches are only weakly referenced, so a cache the application no
+ * longer uses is garbage collected along with its entries even if they have
+ * not expired. It is dropped from the heap when its reference is cleared.
+ * <p>
+ * The shared instance is created when the first cache is registered, which
+ * also starts its thread. If the thread dies it is started again, and it
+ * stops when the manager is {@link #shutdown() shut down}.
+ *
  * @author Doug
- * 
+ *
  */
 public final class CacheManager implements Runnable {
-    
+
     private final static Log log = LogFactory.getLog(CacheManager.class);
-    
+
     private final static long SLEEP = 1000L * 60L * 60L;
-    
+
+    /* Pause between the sweeps of a cache that has more expired entries than one sweep may remove */
+    private final static long SLICE_DELAY = 10L;
+
+    /* A weak reference to a cache, equal to another one for the same cache by identity */
+    private static final class CacheKey extends WeakReference<Sweepable> {
+
+        private final int hash;
+
+        CacheKey(Sweepable cache, ReferenceQueue<Sweepable> queue) {
+            super(cache, queue);
+            hash = System.identityHashCode(cache);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (o == this)
+                return true;
+            if (!(o instanceof CacheKey))
+                return false;
+            Sweepable cache = get();
+            return cache != null && cache == ((CacheKey) o).get();
+        }
+    }
+
     private final class CacheWrap {
-        
+
         private long sweepTime = 0L;
-        private Cache<?, ?> cache;
+        private final CacheKey key;
 
-        public CacheWrap(Cache<?, ?> c) {
-            cache = c;
-            updateSweepTime();
+        /* Position in the heap, or -1 while it is not scheduled */
+        private int heapIndex = -1;
+
+        public CacheWrap(Sweepable c) {
+            key = new CacheKey(c, collected);
+            updateSweepTime(c);
         }
 
-        public Cache<?, ?> getCache() {
-            return cache;
+        /* Returns the cache, or null if it was garbage collected */
+        public Sweepable getCache() {
+            return key.get();
         }
 
         public final long getSweepTime() {
             return sweepTime;
         }
 
-        public final void updateSweepTime() {
+        public final void updateSweepTime(Sweepable cache) {
             long delay = (long) cache.getCheckSeconds() * 1000L;
-            sweepTime = System.currentTimeMillis() + delay;
+            sweepTime = ticker.read() + delay;
+        }
+
+        public String toString() {
+            Sweepable cache = getCache();
+            return "CacheWrap[" + (cache == null ? "collected" : cache.getClass().getSimpleName()) + "," + sweepTime + "]";
         }
     }
 
-    private final List<CacheWrap> entities = new CopyOnWriteArrayList<CacheWrap>();
-    // private boolean stop = true;
+    /* The registered caches and the heap of them ordered by sweep time, guarded by the lock */
+    private final Map<CacheKey, CacheWrap> entities = new HashMap<CacheKey, CacheWrap>();
+    private final ReferenceQueue<Sweepable> collected = new ReferenceQueue<Sweepable>();
+    private CacheWrap[] heap = new CacheWrap[16];
+    private int heapSize;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+
+    /* The source of the current time used to schedule the sweeps */
+    private final Ticker ticker;
+
+    /* Flushes the caches that are due */
+    private volatile Executor sweepers;
+
+    /* Number of caches the shared instance flushes at the same time */
+    private static int sweeperParallelism = Runtime.getRuntime().availableProcessors();
 
     private static CacheManager instance;
-    
-    private final Thread thread;
-    
-    private CacheManager() {
-        thread = new Thread( instance );
-        thread.setPriority(Thread.MIN_PRIORITY);
-        thread.setDaemon(true);
-        thread.setName("CacheManager");    
+
+    /* Whether a thread sweeps the caches, rather than only calls to sweepDue() */
+    private final boolean background;
+
+    /* The thread sweeping the caches, guarded by the lock */
+    private Thread thread;
+    private volatile boolean stopped;
+
+    /* Caches are only swept by calling sweepDue() */
+    CacheManager(Ticker ticker, Executor sweepers) {
+        this(ticker, sweepers, false);
     }
-    
-    private void start() {
-        thread.start();
+
+    CacheManager(Ticker ticker, Executor sweepers, boolean background) {
+        this.ticker = ticker;
+        this.sweepers = sweepers;
+        this.background = background;
     }
 
     /**
-     * Retrieves the 1 and only instance of the CacheManager
+     * Retrieves the 1 and only instance of the CacheManager, creating it if
+     * there is none or it was shut down. Its thread is started once a cache
+     * is registered.
+     *
+     * @return <code>CacheManager</code> - the shared instance
      */
-    static synchronized CacheManager getInstance() {
-        if (instance == null) { // || !mHandler.isAlive() ) 
-            instance = new CacheManager();
-            instance.start();
-        }
+    public static synchronized CacheManager getInstance() {
+        if (instance == null)
+            instance = new CacheManager(Ticker.systemTicker(), createSweepers(sweeperParallelism), true);
         return instance;
     }
 
     /**
-     * Used to start the cache manager thread.
+     * Sets the number of caches that are flushed at the same time. Caches
+     * already being flushed finish on the previous sweepers.
+     *
+     * @param parallelism Number of sweeper threads
      */
-    @Override
-    public void run() {
-        // stop = false;
-        // if ( DEBUG ) System.out.println( "#CACHE# Cache handler starting..." );
-
-        while (true) {
-            
-            CacheWrap next = null;
-            CacheWrap sweepNext = null;
-
-            // Sleeps for 1 hour by default
-            long sleepDelay = SLEEP;
-
-            // Get the next entity if one exists
-            synchronized (entities) {
-                if (entities.isEmpty()) {
-                    sleepDelay = SLEEP;
-                } else {
-                    next = entities.get(0);
-
-                    // If we should sweep, then do it
-                    if (next.getSweepTime() <= System.currentTimeMillis()) {
-                        sweepNext = next;
-                    } else {
-                        sleepDelay = next.getSweepTime() - System.currentTimeMillis();
-                    }
-                }
-            }
+    public static synchronized void setSweeperParallelism(int parallelism) {
+        if (parallelism <= 0)
+            throw new IllegalArgumentException("The sweeper parallelism of the CacheManager must be greater than zero");
+
+        sweeperParallelism = parallelism;
+        if (instance != null) {
+            Executor previous = instance.sweepers;
+            instance.sweepers = createSweepers(parallelism);
+            if (previous instanceof ExecutorService)
+                ((ExecutorService) previous).shutdown();
+        }
+    }
+
+    /**
+     * Returns the number of caches that are flushed at the same time
+     *
+     * @return <code>int</code> - the number of sweeper threads
+     */
+    public static synchronized int getSweeperParallelism() {
+        return sweeperParallelism;
+    }
 
-            // Flush it and continue
-            if (sweepNext != null) {
-                if (log.isDebugEnabled()) log.debug("--- FLUSHING");
-                sweepNext.getCache().flush();
-                sweepNext.updateSweepTime();
-                insertByTime(sweepNext);
-                continue;
+    /* Creates a pool of low priority daemon threads to flush the caches */
+    private static ExecutorService createSweepers(int parallelism) {
+        return new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread worker = new ForkJoinWorkerThread(pool) {
+                };
+                worker.setPriority(Thread.MIN_PRIORITY);
+                worker.setDaemon(true);
+                worker.setName("CacheManager-sweeper-" + worker.getPoolIndex());
+                return worker;
             }
+        }, null, false);
+    }
 
-            // If we didn't seep, then let's sleep
-            try {
-                if (log.isDebugEnabled()) log.debug("--- SLEEPING (" + sleepDelay + ")");
-                if (sleepDelay > 0)
-                    Thread.sleep(sleepDelay);
-            } catch (InterruptedException e) {
-                if (log.isDebugEnabled()) log.debug("### INTERRUPT");
-                // Better check the first one if we get interrupted
+    /**
+     * Stops sweeping the caches. The thread and the sweepers finish what
+     * they are doing and stop, and the next cache registered creates a new
+     * shared instance. The caches registered with this one are told to
+     * register again, which they do with the new instance when an item is
+     * next put. Until then their expired entries are only removed when read.
+     */
+    public void shutdown() {
+        // Replaced first, so a cache that finds this one stopped registers with the next
+        synchronized (CacheManager.class) {
+            if (instance == this)
+                instance = null;
+        }
+
+        List<Sweepable> caches = new ArrayList<Sweepable>();
+        lock.lock();
+        try {
+            stopped = true;
+            if (thread != null)
+                thread.interrupt();
+
+            for (CacheWrap cw : entities.values()) {
+                Sweepable cache = cw.getCache();
+                if (cache != null)
+                    caches.add(cache);
             }
+            entities.clear();
+            Arrays.fill(heap, 0, heapSize, null);
+            heapSize = 0;
+        } finally {
+            lock.unlock();
         }
 
-        // ystem.out.println( "--- STOPPING" );
+        Executor current = sweepers;
+        if (current instanceof ExecutorService)
+            ((ExecutorService) current).shutdown();
+
+        // Lets the caches register with the next manager once they are used again
+        for (Sweepable cache : caches)
+            cache.managerShutdown();
+    }
 
-        // if ( DEBUG ) System.out.println( "#CACHE# Cache handler stopping..." );
+    /**
+     * Returns whether the manager was shut down
+     *
+     * @return <code>boolean</code> - true if shutdown() was called
+     */
+    public boolean isShutdown() {
+        return stopped;
     }
 
     /**
-     * Inserts a Cache by it's timing order
+     * Waits for the thread and the sweepers to stop after a shutdown
      *
-     * @param cw CacheWrap used to extract the time
+     * @param timeout Longest time to wait
+     * @param unit The unit of the timeout
+     * @return <code>boolean</code> - true if they stopped, false if the timeout passed first
+     * @throws InterruptedException if interrupted while waiting
      */
-    protected void insertByTime(CacheWrap cw) {
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!stopped)
+            throw new IllegalStateException("The CacheManager must be shut down before awaiting its termination");
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Thread current;
+        lock.lock();
+        try {
+            current = thread;
+        } finally {
+            lock.unlock();
+        }
+
+        if (current != null) {
+            TimeUnit.NANOSECONDS.timedJoin(current, deadline - System.nanoTime());
+            if (current.isAlive())
+                return false;
+        }
 
-        synchronized( entities ) {
+        Executor pool = sweepers;
+        if (pool instanceof ExecutorService)
+            return ((ExecutorService) pool).awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        return true;
+    }
 
-            int startSize = entities.size();
+    /* Starts the thread, or a new one if it died, unless the manager was shut down. Called while holding the lock. */
+    private void ensureRunning() {
+        if (!background || stopped || (thread != null && thread.isAlive()))
+            return;
 
-            if (entities.contains(cw)) entities.remove(cw);
+        if (thread != null)
+            log.warn("#CACHE# The CacheManager thread died, starting a new one");
 
-            if (cw.getCache().size() == 0) return;
+        thread = new Thread(this);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.setDaemon(true);
+        thread.setName("CacheManager");
+        thread.start();
+    }
 
-            // Cache<?,?> c = cw.getCache();
-            long time = cw.getSweepTime();
+    /**
+     * Used to start the cache manager thread.
+     */
+    @Override
+    public void run() {
+        try {
+            while (!stopped) {
+                try {
+                    awaitDue();
+                } catch (InterruptedException e) {
+                    if (log.isDebugEnabled()) log.debug("### INTERRUPT");
+                    // Shut down, or better check the first one
+                    continue;
+                }
+                sweepDue();
+            }
+        } catch (RuntimeException | Error e) {
+            log.error("#CACHE# The CacheManager thread failed", e);
+            throw e;
+        } finally {
+            // Replaces itself if it is dying of an error
+            lock.lock();
+            try {
+                if (thread == Thread.currentThread()) {
+                    thread = null;
+                    ensureRunning();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
 
-            for (int i = 0; i < entities.size(); i++) {
-                if (entities.get(i).getSweepTime() >= time) {
-                    entities.add(i, cw);
-                    if (i == 0) {
-                        if (log.isDebugEnabled()) log.debug(">>>>> Send INTERRUPT - Inserted into front spot");
-                        thread.interrupt();
-                    }
-                    if (log.isDebugEnabled()) {
-                        log.debug("--- INSERT INTO POS (" + i + ")");
-                        log.debug("--- ENTITIES: " + entities);
-                    }
+    /* Waits until the first cache is due to be swept, sleeping for 1 hour if there are none */
+    private void awaitDue() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!stopped) {
+                long delay = (heapSize == 0) ? SLEEP : heap[0].getSweepTime() - ticker.read();
+                if (delay <= 0)
                     return;
+
+                if (log.isDebugEnabled()) log.debug("--- SLEEPING (" + delay + ")");
+                available.await(delay, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hands each cache whose sweep time has passed to the sweepers, which
+     * flush it and schedule its next sweep. A cache is out of the heap while
+     * it is being flushed, so it is never flushed by two sweepers at once.
+     *
+     * @return the number of caches handed to the sweepers
+     */
+    int sweepDue() {
+        int swept = 0;
+        for (;;) {
+            final CacheWrap next;
+            lock.lock();
+            try {
+                expungeCollected();
+                if (heapSize == 0 || heap[0].getSweepTime() > ticker.read())
+                    return swept;
+                next = poll();
+            } finally {
+                lock.unlock();
+            }
+
+            Runnable sweep = new Runnable() {
+                public void run() {
+                    sweep(next);
                 }
+            };
+            try {
+                sweepers.execute(sweep);
+            } catch (RejectedExecutionException e) {
+                // The sweepers were replaced and shut down, so sweep it here
+                sweep.run();
             }
+            swept++;
+        }
+    }
 
-            entities.add(cw);
+    /* Sweeps a cache and schedules its next sweep, soon if the sweep ran out of budget */
+    private void sweep(CacheWrap cw) {
+        // Held until the sweep is done, so it is not collected part way through
+        Sweepable cache = cw.getCache();
+        if (cache == null)
+            return;
+
+        if (log.isDebugEnabled()) log.debug("--- FLUSHING");
+        boolean more = false;
+        try {
+            more = cache.sweep();
+        } catch (RuntimeException e) {
+            log.error("#CACHE# Unable to flush " + cache, e);
+        } finally {
+            reschedule(cw, cache, more);
+        }
+    }
 
-            // Wake up a sleeping thread
-            if (startSize == 0) {
-                if (log.isDebugEnabled()) log.debug(">>>>> Send INTERRUPT - Added the only cache item in the system");
-                thread.interrupt();
+    /* Schedules the next sweep of a cache, unless it was unregistered while it was flushed */
+    private void reschedule(CacheWrap cw, Sweepable cache, boolean more) {
+        lock.lock();
+        try {
+            if (entities.get(cw.key) == cw) {
+                if (more)
+                    cw.sweepTime = ticker.read() + SLICE_DELAY;
+                else
+                    cw.updateSweepTime(cache);
+                offer(cw);
             }
+        } finally {
+            lock.unlock();
         }
     }
 
-    // /**
-    // * Used to stop the cache manager thread
-    // */
-    // public void end()
-    // {
-    // stop = true;
-    // }
+    /**
+     * Registers the cache with the shared instance, or with the one replacing
+     * it if it is being shut down
+     */
+    static void register(Sweepable c) {
+        CacheManager manager;
+        do {
+            manager = getInstance();
+        } while (!manager.registerCache(c) && manager.isShutdown());
+    }
 
-    /** 
-     * Registers the Cache object with the CacheManager 
-     * 
-     * @return true if registered, false if already existed
+    /**
+     * Unregisters the cache from the shared instance, if there is one
      */
-    synchronized boolean registerCache(Cache<?, ?> c) {
-        
-        synchronized( entities ) {
-            if (!entities.contains(c)) {
-                CacheWrap cw = new CacheWrap(c);
-                insertByTime(cw);
-                // if ( stop ) start();
-                return true;
-            } 
-            else return false;
+    static void unregister(Sweepable c) {
+        CacheManager manager;
+        synchronized (CacheManager.class) {
+            manager = instance;
+        }
+        if (manager != null)
+            manager.unregisterCache(c);
+    }
+
+    /**
+     * Registers the Cache object with the CacheManager
+     *
+     * @return true if registered, false if already existed or the manager was shut down
+     */
+    boolean registerCache(Sweepable c) {
+        lock.lock();
+        try {
+            if (stopped)
+                return false;
+
+            expungeCollected();
+            if (entities.containsKey(new CacheKey(c, null)))
+                return false;
+
+            CacheWrap cw = new CacheWrap(c);
+            entities.put(cw.key, cw);
+            offer(cw);
+            ensureRunning();
+            return true;
+        } finally {
+            lock.unlock();
         }
     }
 
     /** Unregisters the Cache object */
-    synchronized void unregisterCache(Cache<?, ?> c) {
+    void unregisterCache(Sweepable c) {
+        lock.lock();
+        try {
+            expungeCollected();
+            remove(entities.remove(new CacheKey(c, null)));
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        synchronized( entities ) {
+    /* Drops the caches that were garbage collected. Called while holding the lock. */
+    private void expungeCollected() {
+        Object key;
+        while ((key = collected.poll()) != null) {
+            if (log.isDebugEnabled()) log.debug("#CACHE# Dropping a collected cache");
+            remove(entities.remove(key));
+        }
+    }
 
-            CacheWrap found = null;
+    /* Takes an unregistered cache out of the heap. Called while holding the lock. */
+    private void remove(CacheWrap cw) {
+        if (cw != null && cw.heapIndex >= 0)
+            removeAt(cw.heapIndex);
+    }
 
-            for (CacheWrap cw : entities) {
-                if (cw.getCache() == c) {
-                    found = cw;
-                    break;
-                }
-            }
+    /**
+     * Returns the number of registered caches
+     */
+    int registeredCount() {
+        lock.lock();
+        try {
+            expungeCollected();
+            return entities.size();
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            if (found != null) {
-                entities.remove(found);
-                if (entities.size() == 0) {
-                    if (log.isDebugEnabled()) log.debug(">>>>> Send INTERRUPT - Unregistered a Cache");
-                    thread.interrupt();
-                }
-            }
+    /* Adds a cache to the heap, waking the thread if it is now the first due */
+    private void offer(CacheWrap cw) {
+        if (heapSize == heap.length)
+            heap = Arrays.copyOf(heap, heapSize * 2);
+        siftUp(heapSize++, cw);
+
+        if (cw.heapIndex == 0) {
+            if (log.isDebugEnabled()) log.debug(">>>>> Send SIGNAL - Inserted into front spot");
+            available.signal();
+        }
+    }
+
+    /* Removes the cache that is due first */
+    private CacheWrap poll() {
+        CacheWrap first = heap[0];
+        removeAt(0);
+        return first;
+    }
+
+    private void removeAt(int i) {
+        heap[i].heapIndex = -1;
+        int last = --heapSize;
+        CacheWrap moved = heap[last];
+        heap[last] = null;
+        if (last != i) {
+            siftDown(i, moved);
+            if (heap[i] == moved)
+                siftUp(i, moved);
+        }
+    }
+
+    private void siftUp(int k, CacheWrap cw) {
+        while (k > 0) {
+            int parent = (k - 1) >>> 1;
+            CacheWrap e = heap[parent];
+            if (cw.getSweepTime() >= e.getSweepTime())
+                break;
+            heap[k] = e;
+            e.heapIndex = k;
+            k = parent;
+        }
+        heap[k] = cw;
+        cw.heapIndex = k;
+    }
+
+    private void siftDown(int k, CacheWrap cw) {
+        int half = heapSize >>> 1;
+        while (k < half) {
+            int child = (k << 1) + 1;
+            CacheWrap c = heap[child];
+            int right = child + 1;
+            if (right < heapSize && c.getSweepTime() > heap[right].getSweepTime())
+                c = heap[child = right];
+            if (cw.getSweepTime() <= c.getSweepTime())
+                break;
+            heap[k] = c;
+            c.heapIndex = k;
+            k = child;
         }
+        heap[k] = cw;
+        cw.heapIndex = k;
     }
 }
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+package com.draagon.cache;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads and writes the snapshot files of a {@link Cache}. A snapshot starts
+ * with a header holding the number of items, followed by a record for each
+ * item with its serialized key and value, the time it expires and its
+ * lifetime. Files are read and written through a FileChannel with a buffer,
+ * and a snapshot is written to a temporary file that replaces the target once
+ * it is complete, so a crash never leaves a partial snapshot behind.
+ *
+ * @author Doug Mealing
+ */
+final class CacheSnapshot {
+
+    private static final int MAGIC = 0x44434348;
+    private static final int VERSION = 1;
+
+    /* Magic number, version and item count */
+    private static final int HEADER = 16;
+    private static final int COUNT = 8;
+
+    /* Key and value lengths, expiration time and duration */
+    private static final int RECORD_HEADER = 24;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private CacheSnapshot() {
+    }
+
+    /**
+     * An item read back from a snapshot
+     */
+    static final class Record {
+
+        final byte[] key;
+        final byte[] value;
+        final long expirationTime;
+        final long duration;
+
+        Record(byte[] key, byte[] value, long expirationTime, long duration) {
+            this.key = key;
+            this.value = value;
+            this.expirationTime = expirationTime;
+            this.duration = duration;
+        }
+    }
+
+    /**
+     * Writes a snapshot to a temporary file, which replaces the target file
+     * when it is committed
+     */
+    static final class Writer implements Closeable {
+
+        private final Path file;
+        private final Path temp;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private long count;
+        private boolean committed;
+
+        Writer(Path file) throws IOException {
+            this.file = file;
+            this.temp = file.resolveSibling(file.getFileName() + ".tmp");
+            this.channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(0L);
+        }
+
+        void write(byte[] key, byte[] value, long expirationTime, long duration) throws IOException {
+            int size = RECORD_HEADER + key.length + value.length;
+            if (buffer.remaining() < size)
+                drain();
+
+            if (buffer.remaining() < size) {
+                // Larger than the buffer, so written on its own
+                ByteBuffer record = ByteBuffer.allocate(size);
+                put(record, key, value, expirationTime, duration);
+                ((Buffer) record).flip();
+                writeFully(record);
+            } else {
+                put(buffer, key, value, expirationTime, duration);
+            }
+            count++;
+        }
+
+        long count() {
+            return count;
+        }
+
+        /* Writes the item count into the header and moves the file into place */
+        void commit() throws IOException {
+            drain();
+            ByteBuffer header = ByteBuffer.allocate(8);
+            header.putLong(0, count);
+            channel.write(header, COUNT);
+            channel.force(false);
+            channel.close();
+
+            try {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            committed = true;
+        }
+
+        public void close() throws IOException {
+            if (channel.isOpen())
+                channel.close();
+            if (!committed)
+                Files.deleteIfExists(temp);
+        }
+
+        private static void put(ByteBuffer out, byte[] key, byte[] value, long expirationTime, long duration) {
+            out.putInt(key.length).putInt(value.length).putLong(expirationTime).putLong(duration);
+            out.put(key).put(value);
+        }
+
+        private void drain() throws IOException {
+            ((Buffer) buffer).flip();
+            writeFully(buffer);
+            ((Buffer) buffer).clear();
+        }
+
+        private void writeFully(ByteBuffer src) throws IOException {
+            while (src.hasRemaining())
+                channel.write(src);
+        }
+    }
+
+    /**
+     * Reads the records of a snapshot in order
+     */
+    static final class Reader implements Closeable {
+
+        private final FileChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final long count;
+        private long read;
+
+        Reader(Path file) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+            ((Buffer) buffer).flip();
+
+            try {
+                require(HEADER);
+                if (buffer.getInt() != MAGIC)
+                    throw new IOException("Not a cache snapshot: " + file);
+                int version = buffer.getInt();
+                if (version != VERSION)
+                    throw new IOException("Unsupported cache snapshot version " + version + ": " + file);
+                this.count = buffer.getLong();
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /* Returns the number of items in the snapshot */
+        long count() {
+            return count;
+        }
+
+        /* Returns the next record, or null once all have been read */
+        Record next() throws IOException {
+            if (read == count)
+                return null;
+
+            require(RECORD_HEADER);
+            int keyLength = buffer.getInt();
+            int valueLength = buffer.getInt();
+            long expirationTime = buffer.getLong();
+            long duration = buffer.getLong();
+
+            byte[] key = new byte[keyLength];
+            byte[] value = new byte[valueLength];
+            require(keyLength + valueLength);
+            buffer.get(key).get(value);
+
+            read++;
+            return new Record(key, value, expirationTime, duration);
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        /* Reads ahead until the buffer holds the number of bytes, growing it if needed */
+        private void require(int size) throws IOException {
+            if (buffer.remaining() >= size)
+                return;
+
+            if (buffer.capacity() < size) {
+                ByteBuffer larger = ByteBuffer.allocate(size);
+                larger.put(buffer);
+                buffer = larger;
+            } else {
+                buffer.compact();
+            }
+
+            while (buffer.position() < size) {
+                if (channel.read(buffer) < 0)
+                    throw new EOFException("Cache snapshot is truncated");
+            }
+            ((Buffer) buffer).flip();
+        }
+    }
+
+    /**
+     * Returns the number of items in a snapshot, which may be used to size a
+     * Cache before restoring it
+     *
+     * @param file The snapshot file
+     * @return the number of items
+     * @throws IOException if the file could not be read or is not a snapshot
+     */
+    static long count(Path file) throws IOException {
+        Reader reader = new Reader(file);
+        try {
+            return reader.count();
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+package com.draagon.cache;
+
+import java.io.Closeable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A {@link Ticker} whose time is read from the system clock by a background
+ * thread every few milliseconds, so that reading it is only a volatile read.
+ * The time it returns may be behind the clock by up to the resolution, which
+ * makes entries live up to that much longer than their timeout.
+ * <p>
+ * The background thread is a daemon thread that runs until the ticker is
+ * closed. One CoarseTicker may be shared by any number of caches.
+ *
+ * @author Doug Mealing
+ */
+public class CoarseTicker implements Ticker, Closeable {
+
+    private final static Log log = LogFactory.getLog(CoarseTicker.class);
+
+    private final long resolutionMillis;
+    private final Thread thread;
+
+    private volatile long time;
+    private volatile boolean closed;
+
+    /**
+     * Creates the ticker and starts the thread that updates it
+     *
+     * @param resolutionMillis Number of milliseconds between updates of the time
+     */
+    public CoarseTicker(long resolutionMillis) {
+
+        if (resolutionMillis <= 0)
+            throw new IllegalArgumentException("The resolution of a CoarseTicker must be greater than zero");
+
+        this.resolutionMillis = resolutionMillis;
+        this.time = System.currentTimeMillis();
+
+        thread = new Thread(new Runnable() {
+            public void run() {
+                tick();
+            }
+        });
+        thread.setDaemon(true);
+        thread.setName("CoarseTicker");
+        thread.start();
+    }
+
+    // End of constructors
+
+    /**
+     * Returns the number of milliseconds between updates of the time
+     *
+     * @return <code>long</code> - the resolution in milliseconds
+     */
+    public long getResolutionMillis() {
+        return resolutionMillis;
+    }
+
+    public long read() {
+        return time;
+    }
+
+    /**
+     * Stops the thread that updates the time, after which the time no longer
+     * moves
+     */
+    public void close() {
+        closed = true;
+        thread.interrupt();
+    }
+
+    public String toString() {
+        return "CoarseTicker[" + resolutionMillis + "ms]";
+    }
+
+    /* Updates the time until the ticker is closed */
+    private void tick() {
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# Coarse ticker starting (" + resolutionMillis + "ms)");
+
+        while (!closed) {
+            try {
+                Thread.sleep(resolutionMillis);
+            } catch (InterruptedException e) {
+                // Closed
+            }
+            time = System.currentTimeMillis();
+        }
+
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# Coarse ticker stopped");
+    }
+}
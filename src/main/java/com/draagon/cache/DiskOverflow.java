@@ -0,0 +1,473 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+package com.draagon.cache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A second tier for a {@link Cache} with a maximum size, holding the items it
+ * evicts on local disk instead of dropping them. When the Cache misses on an
+ * item it checks the overflow before loading it, and an item found there is
+ * moved back into the Cache.
+ * <p>
+ * Values are written by a {@link Serializer} to the end of a segment file
+ * that is memory-mapped with {@link FileChannel#map}, and once a segment is
+ * full a new one is started. Segments are never rewritten. The index of where
+ * each key's value is held stays in memory, so finding an item does not touch
+ * the disk. A segment is deleted as a whole once all of its items have been
+ * read back, replaced or removed, or once the last of them has expired, and
+ * its file is unmapped as soon as it is deleted.
+ * <p>
+ * Items keep the expiration time they had in the Cache and their timeout is not
+ * reset by reads while they are on disk.
+ *
+ * @author Doug Mealing
+ *
+ * @param <F> The class for the key
+ * @param <E> The class for the cached value
+ */
+public class DiskOverflow<F, E> implements Closeable {
+
+    private final static Log log = LogFactory.getLog(DiskOverflow.class);
+
+    /* Segments are 64MB unless specified */
+    private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /* Each value is written after its length */
+    private static final int HEADER = 4;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final Serializer<E> serializer;
+
+    /* One map entry per item, which is simpler than a packed index and small next to the values on disk */
+    private final ConcurrentHashMap<F, Slot> index = new ConcurrentHashMap<F, Slot>();
+    private final List<Segment> segments = new CopyOnWriteArrayList<Segment>();
+
+    /* Guards appending to the current segment */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private Segment current;
+    private boolean closed;
+
+    /* A segment file and the number of items in it that are still indexed */
+    private static final class Segment {
+
+        final Path file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        final AtomicInteger live = new AtomicInteger();
+        volatile long lastExpiration;
+        volatile boolean deleted;
+
+        /* Held to read the buffer, so that it is not unmapped underneath a reader */
+        final ReentrantReadWriteLock access = new ReentrantReadWriteLock();
+
+        /* Appends to the segment, guarded by the write lock */
+        final ByteBuffer writer;
+
+        Segment(Path file, FileChannel channel, MappedByteBuffer buffer) {
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.writer = buffer.duplicate();
+        }
+    }
+
+    /* Where an item's value is held and when it expires */
+    private static final class Slot {
+
+        final Segment segment;
+        final int offset;
+        final long expirationTime;
+        final long duration;
+
+        Slot(Segment segment, int offset, long expirationTime, long duration) {
+            this.segment = segment;
+            this.offset = offset;
+            this.expirationTime = expirationTime;
+            this.duration = duration;
+        }
+    }
+
+    /**
+     * An item read back from the overflow
+     */
+    static final class Spilled<E> {
+
+        final E value;
+        final long expirationTime;
+        final long duration;
+
+        Spilled(E value, long expirationTime, long duration) {
+            this.value = value;
+            this.expirationTime = expirationTime;
+            this.duration = duration;
+        }
+    }
+
+    /**
+     * Creates the overflow in the directory with 64MB segments
+     *
+     * @param directory Directory the segment files are written to, which is created if needed
+     * @param serializer Writes the values as bytes
+     * @throws IOException if the directory could not be created
+     */
+    public DiskOverflow(Path directory, Serializer<E> serializer) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, serializer);
+    }
+
+    /**
+     * Creates the overflow in the directory, specifing the size of each
+     * segment file
+     *
+     * @param directory Directory the segment files are written to, which is created if needed
+     * @param segmentSize Number of bytes in each segment file, which limits the size of a value
+     * @param serializer Writes the values as bytes
+     * @throws IOException if the directory could not be created
+     */
+    public DiskOverflow(Path directory, int segmentSize, Serializer<E> serializer) throws IOException {
+
+        if (directory == null || serializer == null)
+            throw new IllegalArgumentException("You may not have a null directory or serializer in a DiskOverflow object");
+        if (segmentSize <= HEADER)
+            throw new IllegalArgumentException("The segment size of a DiskOverflow must be larger than " + HEADER);
+
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentSize;
+        this.serializer = serializer;
+    }
+
+    // End of constructors
+
+    /**
+     * Returns the directory the segment files are written to
+     *
+     * @return <code>Path</code> - the directory
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the number of bytes in each segment file
+     *
+     * @return <code>int</code> - the segment size
+     */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Returns the number of segment files
+     *
+     * @return <code>int</code> - the number of segments
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Returns the number of items held on disk, which may include expired
+     * items that have not been reclaimed yet
+     *
+     * @return <code>int</code> - the number of items
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Returns whether an item is held on disk for the key
+     *
+     * @param key The key of the item
+     * @return <code>boolean</code> - true if the item is on disk
+     */
+    public boolean containsKey(Object key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * Writes an item evicted from the Cache to disk, unless it has already
+     * expired
+     *
+     * @return true if the item was written
+     */
+    boolean spill(F key, E value, long expirationTime, long duration, long now) {
+        if (value == null || expirationTime < now)
+            return false;
+
+        byte[] bytes = serializer.serialize(value);
+        if (HEADER + bytes.length > segmentSize) {
+            if (log.isDebugEnabled())
+                log.debug("#CACHE# Item " + key + " is too large to overflow to disk");
+            return false;
+        }
+
+        Slot slot;
+        writeLock.lock();
+        try {
+            if (closed)
+                return false;
+
+            Segment segment = current;
+            if (segment == null || segment.writer.position() + HEADER + bytes.length > segmentSize) {
+                segment = createSegment();
+                if (segment == null)
+                    return false;
+            }
+
+            slot = new Slot(segment, segment.writer.position(), expirationTime, duration);
+            segment.writer.putInt(bytes.length);
+            segment.writer.put(bytes);
+            segment.live.incrementAndGet();
+            if (expirationTime > segment.lastExpiration)
+                segment.lastExpiration = expirationTime;
+        } finally {
+            writeLock.unlock();
+        }
+
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# Overflowed item " + key + " to disk");
+
+        Slot prior = index.put(key, slot);
+        if (prior != null)
+            release(prior);
+        return true;
+    }
+
+    /**
+     * Removes an item from disk and returns it, unless it has expired
+     *
+     * @return the item, or null if it is not on disk or has expired
+     */
+    Spilled<E> take(Object key, long now) {
+        Slot slot = index.remove(key);
+        if (slot == null)
+            return null;
+
+        Segment segment = slot.segment;
+        try {
+            if (slot.expirationTime < now)
+                return null;
+
+            byte[] bytes;
+            segment.access.readLock().lock();
+            try {
+                if (segment.deleted)
+                    return null;
+
+                ByteBuffer reader = segment.buffer.duplicate();
+                // Cast so this links against Java 8, where position() is only on Buffer
+                ((Buffer) reader).position(slot.offset);
+                bytes = new byte[reader.getInt()];
+                reader.get(bytes);
+            } finally {
+                segment.access.readLock().unlock();
+            }
+            return new Spilled<E>(serializer.deserialize(bytes), slot.expirationTime, slot.duration);
+        } finally {
+            release(slot);
+        }
+    }
+
+    /**
+     * Removes an item from disk
+     */
+    void remove(Object key) {
+        Slot slot = index.remove(key);
+        if (slot != null)
+            release(slot);
+    }
+
+    /**
+     * Deletes the segments whose items have all been removed or have expired
+     *
+     * @param now The current time in milliseconds
+     * @return the number of expired items that were removed with the segments
+     */
+    int flush(long now) {
+        int expired = 0;
+        for (Segment segment : segments) {
+            if (!reclaimable(segment, now))
+                continue;
+
+            // Checked again under the lock, as the current segment may have been appended to
+            writeLock.lock();
+            try {
+                if (!reclaimable(segment, now))
+                    continue;
+                if (segment == current)
+                    current = null;
+                deleteSegment(segment);
+            } finally {
+                writeLock.unlock();
+            }
+
+            if (segment.live.get() > 0) {
+                for (Iterator<Map.Entry<F, Slot>> i = index.entrySet().iterator(); i.hasNext();) {
+                    if (i.next().getValue().segment == segment) {
+                        i.remove();
+                        expired++;
+                    }
+                }
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Removes all items and deletes the segment files
+     */
+    void clear() {
+        writeLock.lock();
+        try {
+            index.clear();
+            current = null;
+            for (Segment segment : segments)
+                deleteSegment(segment);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Removes all items and deletes the segment files. Evicted items are no
+     * longer written to disk afterwards.
+     */
+    public void close() {
+        writeLock.lock();
+        try {
+            closed = true;
+            clear();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public String toString() {
+        return "DiskOverflow[" + directory + ",size=" + size() + ",segments=" + getSegmentCount() + "]";
+    }
+
+    /* Returns whether all of the items in the segment were removed or have expired */
+    private static boolean reclaimable(Segment segment, long now) {
+        return segment.live.get() <= 0 || segment.lastExpiration < now;
+    }
+
+    /* Drops an item from its segment, which is deleted at the next flush once it is empty */
+    private void release(Slot slot) {
+        slot.segment.live.decrementAndGet();
+    }
+
+    /* Starts a new segment file. Called while holding the write lock. */
+    private Segment createSegment() {
+        Path file = null;
+        try {
+            file = Files.createTempFile(directory, "overflow-", ".seg");
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+
+            Segment segment = new Segment(file, channel, buffer);
+            segments.add(segment);
+            current = segment;
+
+            if (log.isDebugEnabled())
+                log.debug("#CACHE# Created overflow segment " + file);
+            return segment;
+        } catch (IOException e) {
+            log.warn("#CACHE# Unable to create overflow segment in " + directory, e);
+            if (file != null)
+                deleteFile(file);
+            return null;
+        }
+    }
+
+    /* Called while holding the write lock */
+    private void deleteSegment(Segment segment) {
+        if (segment.deleted)
+            return;
+
+        // Waits for any reader to finish, after which none will touch the buffer
+        segment.access.writeLock().lock();
+        try {
+            segment.deleted = true;
+        } finally {
+            segment.access.writeLock().unlock();
+        }
+
+        segments.remove(segment);
+        try {
+            segment.channel.close();
+        } catch (IOException e) {
+            log.warn("#CACHE# Unable to close overflow segment " + segment.file, e);
+        }
+        unmap(segment.buffer);
+        deleteFile(segment.file);
+
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# Deleted overflow segment " + segment.file);
+    }
+
+    /*
+     * Releases the mapping now rather than when the buffer is garbage
+     * collected, as until then the memory stays mapped and on some platforms
+     * the file can not be deleted. The buffer must not be read afterwards.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Object cleaner;
+            try {
+                // Java 9 and later
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+                return;
+            } catch (NoSuchMethodException e) {
+                // Java 8, where the buffer holds its own cleaner
+                Method getCleaner = buffer.getClass().getMethod("cleaner");
+                getCleaner.setAccessible(true);
+                cleaner = getCleaner.invoke(buffer);
+            }
+            if (cleaner != null)
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+        } catch (Exception e) {
+            // Left to the garbage collector
+            if (log.isDebugEnabled())
+                log.debug("#CACHE# Unable to unmap overflow segment", e);
+        }
+    }
+
+    private void deleteFile(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("#CACHE# Unable to delete overflow segment " + file, e);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+package com.draagon.cache;
+
+/**
+ * Calculates how long each entry in a Cache may live, allowing entries of the
+ * same Cache to have different lifetimes. Each method returns the number of
+ * milliseconds from the current time until the entry expires, so returning
+ * the current duration leaves the expiration time unchanged.
+ * <p>
+ * The methods are called on the thread reading or writing the Cache, so they
+ * should be quick and must not access the Cache itself.
+ *
+ * @author Doug Mealing
+ *
+ * @param <F> The class for the key
+ * @param <E> The class for the cached value
+ */
+public interface Expiry<F, E> {
+
+    /**
+     * Returns the lifetime of an entry that was just put into the cache
+     *
+     * @param key The key of the entry
+     * @param value The value of the entry
+     * @param currentTime The current time in milliseconds
+     * @return the number of milliseconds until the entry expires
+     */
+    long expireAfterCreate(F key, E value, long currentTime);
+
+    /**
+     * Returns the lifetime of an entry whose value was just replaced. By
+     * default the entry is treated as if it was created again.
+     *
+     * @param key The key of the entry
+     * @param value The new value of the entry
+     * @param currentTime The current time in milliseconds
+     * @param currentDuration The number of milliseconds the entry had left
+     * @return the number of milliseconds until the entry expires
+     */
+    default long expireAfterUpdate(F key, E value, long currentTime, long currentDuration) {
+        return expireAfterCreate(key, value, currentTime);
+    }
+
+    /**
+     * Returns the lifetime of an entry that was just read. By default the
+     * expiration time is left unchanged.
+     *
+     * @param key The key of the entry
+     * @param value The value of the entry
+     * @param currentTime The current time in milliseconds
+     * @param currentDuration The number of milliseconds the entry has left
+     * @return the number of milliseconds until the entry expires
+     */
+    default long expireAfterRead(F key, E value, long currentTime, long currentDuration) {
+        return currentDuration;
+    }
+}
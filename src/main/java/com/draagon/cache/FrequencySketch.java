@@ -0,0 +1,123 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+package com.draagon.cache;
+
+/**
+ * A probabilistic count of how often keys have been used, backed by a 4-bit
+ * Count-Min sketch. Each long in the table holds sixteen 4-bit counters and a
+ * key maps to one counter in each of four rows, with its estimated frequency
+ * being the minimum of those counters.
+ * <p>
+ * To keep the history fresh the counters are halved once the number of
+ * increments reaches a sample size of ten times the maximum size of the cache,
+ * so keys that were popular long ago eventually lose out to new popular keys.
+ * <p>
+ * This class is not thread-safe and is guarded by the owning Cache's eviction
+ * lock.
+ *
+ * @author Doug Mealing
+ */
+final class FrequencySketch {
+
+    private static final long[] SEED = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int size;
+
+    /**
+     * Creates a sketch sized for a cache holding the maximum number of entries
+     *
+     * @param maximumSize Maximum number of entries held by the cache
+     */
+    FrequencySketch(long maximumSize) {
+        int capacity = (int) Math.min(Math.max(maximumSize, 1L), MAXIMUM_CAPACITY);
+        table = new long[ceilingPowerOfTwo(capacity)];
+        tableMask = table.length - 1;
+        sampleSize = (int) Math.min(10L * Math.max(maximumSize, 1L), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the estimated number of occurrences of the key, up to a maximum
+     * of 15.
+     *
+     * @param key The key to estimate the frequency of
+     * @return the estimated frequency of the key
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < SEED.length; i++) {
+            long h = indexHash(hash, i);
+            int index = (int) h & tableMask;
+            int offset = ((int) (h >>> 48) & 15) << 2;
+            int count = (int) ((table[index] >>> offset) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Increments the popularity of the key if it is not already at the
+     * maximum, periodically aging all of the counters.
+     *
+     * @param key The key to increment the frequency of
+     */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < SEED.length; i++) {
+            long h = indexHash(hash, i);
+            int index = (int) h & tableMask;
+            int offset = ((int) (h >>> 48) & 15) << 2;
+            long mask = 0xfL << offset;
+            if ((table[index] & mask) != mask) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+
+        if (added && (++size >= sampleSize)) {
+            reset();
+        }
+    }
+
+    /* Halves every counter and adjusts the sample size accordingly */
+    private void reset() {
+        int oddCount = 0;
+        for (int i = 0; i < table.length; i++) {
+            oddCount += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size - (oddCount >>> 2)) >>> 1;
+    }
+
+    /* Returns the hash for the row, mixing the key's hash with the row seed */
+    private static long indexHash(int hash, int row) {
+        long h = (hash + SEED[row]) * SEED[row];
+        h += (h >>> 32);
+        return h;
+    }
+
+    /* Applies a supplemental hash to defend against poor quality hash codes */
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+
+    private static int ceilingPowerOfTwo(int x) {
+        return (x <= 1) ? 1 : Integer.highestOneBit(x - 1) << 1;
+    }
+}
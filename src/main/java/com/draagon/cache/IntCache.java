@@ -0,0 +1,139 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+package com.draagon.cache;
+
+/**
+ * A Cache keyed by primitive ints that never boxes its keys. The keys are
+ * widened to longs and held in a {@link LongCache}, which has the same
+ * expiration and reset on read behavior.
+ *
+ * @author Doug Mealing
+ *
+ * @param <E> The class for the cached value
+ */
+public class IntCache<E> {
+
+    private final LongCache<E> cache;
+
+    /**
+     * This creates the cache specifing the check value and the element timeout
+     * value.
+     *
+     * @param reset Whether a cache item's expiration is reset after a get call
+     * @param checkSeconds Number of seconds between the timeout check cycles
+     * @param timeoutSeconds Number of seconds before and inactive object times out.
+     */
+    public IntCache(boolean reset, int checkSeconds, int timeoutSeconds) {
+        this(reset, checkSeconds, timeoutSeconds, 1);
+    }
+
+    /**
+     * Create the cache specifing the check value, the element timeout, the
+     * initial number of entries and whether to reset on a read.
+     *
+     * @param resetOnRead Whether a cache item's expiration is reset after a get call
+     * @param checkSeconds Number of seconds between timeout check cycles.
+     * @param timeoutSeconds  Number of seconds before an inactive object times out.
+     * @param initialCapacity Number of entries to initially size the tables for.
+     */
+    public IntCache(boolean resetOnRead, int checkSeconds, int timeoutSeconds, int initialCapacity) {
+        cache = new LongCache<E>(resetOnRead, checkSeconds, timeoutSeconds, initialCapacity);
+    }
+
+    // End of constructors
+
+    public void setResetCache(boolean state) {
+        cache.setResetCache(state);
+    }
+
+    public boolean getResetCache() {
+        return cache.getResetCache();
+    }
+
+    public int getTOSeconds() {
+        return cache.getTOSeconds();
+    }
+
+    public int getCheckSeconds() {
+        return cache.getCheckSeconds();
+    }
+
+    public void setTicker(Ticker ticker) {
+        cache.setTicker(ticker);
+    }
+
+    public Ticker getTicker() {
+        return cache.getTicker();
+    }
+
+    /**
+     * Caches the passed item, identifying it by the passed key value. A null
+     * value removes the item.
+     *
+     * @param key Key used to identify the property
+     * @param value Object Value object used to hold the property value
+     *
+     * @return <code>Object</code> - The value previously cached for the key
+     */
+    public E put(int key, E value) {
+        return cache.put(key, value);
+    }
+
+    /**
+     * Retrieves the cached item specified by the passed key. If the reset
+     * cache flag is set to true, it will also reset the timestamp to prevent
+     * the item from timing out.
+     *
+     * @param key Key used to identify the property
+     *
+     * @return <code>Object</code> - The cached value, or null if it is not cached
+     */
+    public E get(int key) {
+        return cache.get(key);
+    }
+
+    public boolean containsKey(int key) {
+        return cache.containsKey(key);
+    }
+
+    /**
+     * Removes the cached item specified by the passed key from the cache
+     *
+     * @param key Key used to identify the property
+     *
+     * @return <code>Object</code> - The value that was cached for the key
+     */
+    public E remove(int key) {
+        return cache.remove(key);
+    }
+
+    /**
+     * Clears the cache of any inactive objects
+     */
+    public void flush() {
+        cache.flush();
+    }
+
+    /**
+     * Removes all items from the cache
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public boolean isEmpty() {
+        return cache.isEmpty();
+    }
+
+    public String toString() {
+        return cache.toString();
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+package com.draagon.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * A {@link Serializer} that uses Java serialization, so it works for any
+ * Serializable class. It is convenient but slow and verbose, so a Serializer
+ * written for the class is better for large caches.
+ *
+ * @author Doug Mealing
+ *
+ * @param <T> The class that is serialized
+ */
+public class JavaSerializer<T extends Serializable> implements Serializer<T> {
+
+    public byte[] serialize(T object) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(object);
+            out.close();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to serialize " + object, e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    public T deserialize(byte[] bytes) {
+        try {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+            try {
+                return (T) in.readObject();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to deserialize object", e);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Unable to deserialize object", e);
+        }
+    }
+}
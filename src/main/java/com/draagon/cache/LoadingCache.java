@@ -0,0 +1,446 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+package com.draagon.cache;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A Cache that populates itself. When get() is called for a key that is not
+ * in the cache, or whose entry has expired, the value is loaded by the
+ * {@link CacheLoader} and put into the cache before being returned.
+ * <p>
+ * Only one load is ever in flight for a key. If other threads miss on the same
+ * key while it is being loaded they wait for that load to finish and share its
+ * result, rather than each going to the backing store. This prevents a herd of
+ * threads from reloading a popular key at the same moment when it expires.
+ * getAll() loads all of the missing keys of a batch with one call to the
+ * loader's loadAll(), waiting on any of them already being loaded instead.
+ * <p>
+ * A refresh time that is shorter than the timeout may also be set. Once an
+ * item was written longer ago than the refresh time, the next read still
+ * returns the current value straight away but starts a reload in the
+ * background, so popular items stay fresh without readers waiting on loads.
+ *
+ * @author Doug Mealing
+ *
+ * @param <F> The class for the key
+ * @param <E> The class for the cached value
+ */
+public class LoadingCache<F, E> extends Cache<F, E> {
+
+    private final static Log log = LogFactory.getLog(LoadingCache.class);
+
+    private final CacheLoader<? super F, E> loader;
+
+    /* The loads currently in flight, used to have misses on a key share one load */
+    private final ConcurrentHashMap<F, CompletableFuture<E>> loading = new ConcurrentHashMap<F, CompletableFuture<E>>();
+
+    private volatile long refreshMillis = -1L;
+    private volatile Executor refreshExecutor = AsyncCache.defaultExecutor();
+
+    /**
+     * This creates the loading cache specifing the check value, the element
+     * timeout value and the loader.
+     *
+     * @param reset Whether a cache item's expiration is reset after a get call
+     * @param checkSeconds Number of seconds between the timeout check cycles
+     * @param timeoutSeconds Number of seconds before and inactive object times out.
+     * @param loader Loads the value of a missing item
+     */
+    public LoadingCache(boolean reset, int checkSeconds, int timeoutSeconds, CacheLoader<? super F, E> loader) {
+        this(reset, checkSeconds, timeoutSeconds, 1, -1L, loader);
+    }
+
+    /**
+     * Create the loading cache specifing the check value, the element timeout,
+     * the initial map size, whether to reset on a read, the maximum number of
+     * entries to hold and the loader.
+     *
+     * @param resetOnRead Whether a cache item's expiration is reset after a get call
+     * @param checkSeconds Number of seconds between timeout check cycles.
+     * @param timeoutSeconds  Number of seconds before an inactive object times out.
+     * @param initialCapacity Number of entries to initially put in the HashMap.
+     * @param maximumSize Maximum number of entries to hold, or a negative number for no limit
+     * @param loader Loads the value of a missing item
+     */
+    public LoadingCache(boolean resetOnRead, int checkSeconds, int timeoutSeconds, int initialCapacity,
+            long maximumSize, CacheLoader<? super F, E> loader) {
+        super(resetOnRead, checkSeconds, timeoutSeconds, initialCapacity, maximumSize);
+        this.loader = requireLoader(loader);
+    }
+
+    /**
+     * Create the loading cache specifing the check value, the policy that
+     * calculates the lifetime of each entry and the loader.
+     *
+     * @param checkSeconds Number of seconds between timeout check cycles.
+     * @param expiry Calculates the number of milliseconds each entry lives for
+     * @param loader Loads the value of a missing item
+     */
+    public LoadingCache(int checkSeconds, Expiry<? super F, ? super E> expiry, CacheLoader<? super F, E> loader) {
+        super(checkSeconds, expiry);
+        this.loader = requireLoader(loader);
+    }
+
+    // End of constructors
+
+    private static <F, E> CacheLoader<F, E> requireLoader(CacheLoader<F, E> loader) {
+        if (loader == null)
+            throw new IllegalArgumentException("You may not have a null loader in a LoadingCache object");
+        return loader;
+    }
+
+    /**
+     * Returns the loader used to populate missing items
+     *
+     * @return <code>CacheLoader</code> - the loader
+     */
+    public CacheLoader<? super F, E> getLoader() {
+        return loader;
+    }
+
+    /**
+     * Sets how long after an item was written that reading it starts a
+     * reload in the background. This should be shorter than the timeout, as
+     * an item that has expired is loaded by the reader instead.
+     *
+     * @param refresh Time after a write to refresh the item, or null to never refresh
+     */
+    public void setRefreshAfterWrite(Duration refresh) {
+        if (refresh != null && (refresh.isNegative() || refresh.isZero()))
+            throw new IllegalArgumentException("The refresh time of a LoadingCache must be positive");
+        refreshMillis = (refresh == null) ? -1L : refresh.toMillis();
+    }
+
+    /**
+     * Returns how long after an item was written that reading it starts a
+     * reload in the background.
+     *
+     * @return <code>Duration</code> - the refresh time, or null if items are never refreshed
+     */
+    public Duration getRefreshAfterWrite() {
+        long millis = refreshMillis;
+        return (millis < 0) ? null : Duration.ofMillis(millis);
+    }
+
+    /**
+     * Sets the executor that background refreshes run on
+     *
+     * @param executor Runs the refreshes, or null to use the default executor
+     */
+    public void setRefreshExecutor(Executor executor) {
+        refreshExecutor = (executor == null) ? AsyncCache.defaultExecutor() : executor;
+    }
+
+    /**
+     * Returns the executor that background refreshes run on
+     *
+     * @return <code>Executor</code> - the executor
+     */
+    public Executor getRefreshExecutor() {
+        return refreshExecutor;
+    }
+
+    /**
+     * Retrieves the cached item specified by the passed key object, loading it
+     * if it is not in the cache. If the item is already being loaded by another
+     * thread this waits for that load rather than starting another. If the
+     * item is due to be refreshed a reload is started in the background and
+     * the current value is returned.
+     *
+     * @param key Object Key object used to identify the property
+     *
+     * @return <code>Object</code> - The cached or loaded value, or null if the
+     *         loader had no value for the key
+     * @throws CacheLoaderException if the loader failed with a checked exception
+     */
+    @Override
+    public E get(Object key) {
+        if (key == null)
+            return null;
+
+        @SuppressWarnings("unchecked")
+        F k = (F) key;
+
+        E value = getPresent(k, getTicker().read());
+        if (value != null)
+            return value;
+
+        return load(k);
+    }
+
+    /* End of get( Object ) method */
+
+    /**
+     * Retrieves the cached items specified by the passed keys, loading all of
+     * the ones that are not cached with a single call to the loader. Keys that
+     * are already being loaded by another thread are waited on instead. Cached
+     * items that are due to be refreshed are reloaded in the background, the
+     * same as with get.
+     *
+     * @param keys The keys of the items to retrieve
+     *
+     * @return <code>Map</code> - The cached or loaded items, in the order of
+     *         the keys, leaving out keys the loader had no value for
+     * @throws CacheLoaderException if the loader failed with a checked exception
+     */
+    public Map<F, E> getAll(Iterable<? extends F> keys) {
+
+        Map<F, E> present = new HashMap<F, E>();
+        Set<F> ordered = new LinkedHashSet<F>();
+        Set<F> missing = new LinkedHashSet<F>();
+        long now = getTicker().read();
+        for (F key : keys) {
+            if (key == null || !ordered.add(key))
+                continue;
+            E value = getPresent(key, now);
+            if (value == null)
+                missing.add(key);
+            else
+                present.put(key, value);
+        }
+
+        if (!missing.isEmpty())
+            present.putAll(loadAll(missing));
+
+        Map<F, E> result = new LinkedHashMap<F, E>();
+        for (F key : ordered) {
+            E value = present.get(key);
+            if (value != null)
+                result.put(key, value);
+        }
+        return result;
+    }
+
+    /* End of getAll( Iterable ) method */
+
+    /**
+     * Retrieves the cached item specified by the passed key object without
+     * loading it if it is missing.
+     *
+     * @param key Object Key object used to identify the property
+     *
+     * @return <code>Object</code> - The cached value, or null if it is not cached
+     */
+    public E getIfPresent(Object key) {
+        return super.get(key);
+    }
+
+    /*
+     * Returns the cached value as of the given time, starting a background
+     * reload if it is due to be refreshed
+     */
+    private E getPresent(F key, long now) {
+        CacheEntry entry = getEntry(key, now);
+        if (entry == null)
+            return null;
+
+        E value = entry.getValue();
+        if (value != null) {
+            long refresh = refreshMillis;
+            if (refresh >= 0 && now - entry.getWriteTime() > refresh)
+                refresh(key, value);
+        }
+        return value;
+    }
+
+    /* Loads the item, or waits on the load already in flight for it */
+    private E load(F key) {
+        CompletableFuture<E> future = new CompletableFuture<E>();
+        CompletableFuture<E> inFlight = loading.putIfAbsent(key, future);
+        if (inFlight != null) {
+            if (log.isDebugEnabled())
+                log.debug("#CACHE# waiting on load of item " + key);
+            return await(key, inFlight);
+        }
+
+        try {
+            // Another thread may have finished loading the item before ours was registered
+            E value = super.get(key);
+            if (value == null) {
+                value = loadValue(key);
+                if (value != null)
+                    put(key, value);
+            }
+            future.complete(value);
+            return value;
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+            throw t;
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+
+    /*
+     * Loads the missing items with one call to the loader, registering a load
+     * in flight for each key so that other threads wait on it. Keys another
+     * thread is already loading are waited on rather than loaded again.
+     */
+    private Map<F, E> loadAll(Set<F> keys) {
+        Map<F, CompletableFuture<E>> owned = new LinkedHashMap<F, CompletableFuture<E>>();
+        Map<F, CompletableFuture<E>> waiting = new HashMap<F, CompletableFuture<E>>();
+        for (F key : keys) {
+            CompletableFuture<E> future = new CompletableFuture<E>();
+            CompletableFuture<E> inFlight = loading.putIfAbsent(key, future);
+            if (inFlight == null)
+                owned.put(key, future);
+            else
+                waiting.put(key, inFlight);
+        }
+
+        Map<F, E> result = new HashMap<F, E>();
+        try {
+            if (!owned.isEmpty()) {
+                // Another thread may have finished loading some before ours were registered
+                Set<F> load = new LinkedHashSet<F>();
+                for (F key : owned.keySet()) {
+                    E value = super.get(key);
+                    if (value == null)
+                        load.add(key);
+                    else
+                        result.put(key, value);
+                }
+
+                if (!load.isEmpty()) {
+                    Map<F, E> loaded = loadAllValues(load);
+                    putAll(loaded);
+                    result.putAll(loaded);
+                }
+            }
+
+            for (Map.Entry<F, CompletableFuture<E>> e : owned.entrySet())
+                e.getValue().complete(result.get(e.getKey()));
+        } catch (Throwable t) {
+            for (CompletableFuture<E> future : owned.values())
+                future.completeExceptionally(t);
+            throw t;
+        } finally {
+            for (Map.Entry<F, CompletableFuture<E>> e : owned.entrySet())
+                loading.remove(e.getKey(), e.getValue());
+        }
+
+        for (Map.Entry<F, CompletableFuture<E>> e : waiting.entrySet())
+            result.put(e.getKey(), await(e.getKey(), e.getValue()));
+        return result;
+    }
+
+    /*
+     * Reloads the item on the refresh executor unless a load is already in
+     * flight for it. The reloaded value only replaces the value that was read,
+     * so a value put or removed in the meantime is not overwritten.
+     */
+    private void refresh(final F key, final E oldValue) {
+        // Checked first, as every read of a stale item lands here until the reload finishes
+        if (loading.containsKey(key))
+            return;
+
+        final CompletableFuture<E> future = new CompletableFuture<E>();
+        if (loading.putIfAbsent(key, future) != null)
+            return;
+
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# refreshing item " + key);
+
+        Runnable reload = new Runnable() {
+            public void run() {
+                try {
+                    E value = loader.reload(key, oldValue);
+                    if (value == null)
+                        remove(key, oldValue);
+                    else
+                        replace(key, oldValue, value);
+                    future.complete(value);
+                } catch (Throwable t) {
+                    log.warn("#CACHE# Unable to refresh item " + key, t);
+                    future.completeExceptionally(t);
+                } finally {
+                    loading.remove(key, future);
+                }
+            }
+        };
+
+        try {
+            refreshExecutor.execute(reload);
+        } catch (Throwable t) {
+            // The executor rejected the refresh, so try again on the next read
+            loading.remove(key, future);
+            future.completeExceptionally(t);
+        }
+    }
+
+    /*
+     * Calls the loader for the keys, wrapping any checked exception and only
+     * keeping the values of the keys that were asked for
+     */
+    private Map<F, E> loadAllValues(Set<F> keys) {
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# loading " + keys.size() + " items");
+
+        Map<?, E> values;
+        try {
+            values = loader.loadAll(keys);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CacheLoaderException("Unable to load items " + keys, e);
+        }
+
+        Map<F, E> result = new HashMap<F, E>();
+        if (values != null) {
+            for (F key : keys) {
+                E value = values.get(key);
+                if (value != null)
+                    result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    /* Calls the loader, wrapping any checked exception */
+    private E loadValue(F key) {
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# loading item " + key);
+
+        try {
+            return loader.load(key);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CacheLoaderException("Unable to load item " + key, e);
+        }
+    }
+
+    /* Waits for a load in flight on another thread, rethrowing its failure */
+    private E await(F key, CompletableFuture<E> inFlight) {
+        try {
+            return inFlight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CacheLoaderException("Interrupted while waiting on load of item " + key, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new CacheLoaderException("Unable to load item " + key, cause);
+        }
+    }
+}
@@ -0,0 +1,556 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+package com.draagon.cache;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A Cache keyed by primitive longs, such as database ids, that never boxes
+ * its keys. Entries are held in open addressing tables with linear probing,
+ * where each entry is a slot in three parallel arrays: a long[] of keys, an
+ * Object[] of values and a long[] of the times the entries were last put or,
+ * if reads reset the timeout, read. An entry costs no objects beyond its
+ * value, and reading one allocates nothing.
+ * <p>
+ * Expiration works the same as for the {@link Cache}: an entry expires a
+ * number of seconds after it was put or, if the reset cache flag is set, after
+ * it was last read. Expired entries are removed when they are read and by the
+ * CacheManager's check cycles, which scan the arrays.
+ * <p>
+ * The cache is split into segments, each with its own lock and table. A null
+ * value is not cached, so putting one removes the entry.
+ *
+ * @author Doug Mealing
+ *
+ * @param <E> The class for the cached value
+ */
+public class LongCache<E> {
+
+    private final static Log log = LogFactory.getLog(LongCache.class);
+
+    private static final int SEGMENTS = 16;
+    private static final int SEGMENT_SHIFT = 28;
+    private static final int MINIMUM_SLOTS = 16;
+
+    /* Marks a slot whose entry was removed until the table is rebuilt */
+    private static final Object DELETED = new Object();
+
+    private volatile boolean resetCache;
+    private volatile Ticker ticker = Ticker.systemTicker();
+
+    /* Whether the cache is registered with the CacheManager to be flushed */
+    private volatile boolean registered;
+
+    /* What the CacheManager is given in place of the cache, as it calls managerShutdown() */
+    final Sweepable sweepable = new Sweepable() {
+        public int getCheckSeconds() {
+            return LongCache.this.getCheckSeconds();
+        }
+
+        public int size() {
+            return LongCache.this.size();
+        }
+
+        public void flush() {
+            LongCache.this.flush();
+        }
+
+        public void managerShutdown() {
+            LongCache.this.managerShutdown();
+        }
+    };
+
+    private final int checkSeconds;
+    private final int timeoutSeconds;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final Segment[] segments = new LongCache.Segment[SEGMENTS];
+
+    /**
+     * This creates the cache specifing the check value and the element timeout
+     * value.
+     *
+     * @param reset Whether a cache item's expiration is reset after a get call
+     * @param checkSeconds Number of seconds between the timeout check cycles
+     * @param timeoutSeconds Number of seconds before and inactive object times out.
+     */
+    public LongCache(boolean reset, int checkSeconds, int timeoutSeconds) {
+        this(reset, checkSeconds, timeoutSeconds, 1);
+    }
+
+    /**
+     * Create the cache specifing the check value, the element timeout, the
+     * initial number of entries and whether to reset on a read.
+     *
+     * @param resetOnRead Whether a cache item's expiration is reset after a get call
+     * @param checkSeconds Number of seconds between timeout check cycles.
+     * @param timeoutSeconds  Number of seconds before an inactive object times out.
+     * @param initialCapacity Number of entries to initially size the tables for.
+     */
+    public LongCache(boolean resetOnRead, int checkSeconds, int timeoutSeconds, int initialCapacity) {
+
+        this.resetCache = resetOnRead;
+        this.checkSeconds = checkSeconds;
+        this.timeoutSeconds = timeoutSeconds;
+
+        int slots = tableSize(Math.max(initialCapacity, 1) / SEGMENTS + 1);
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment(slots);
+    }
+
+    // End of constructors
+
+    /**
+     * Used to set the reset cache flag. If true, an item's timeout is reset
+     * each time it is read.
+     *
+     * @param state Whether the item timeouts are reset after each read
+     */
+    public void setResetCache(boolean state) {
+        resetCache = state;
+    }
+
+    /**
+     * Returns the state of the reset cache flag.
+     *
+     * @return <code>boolean</code> - Reset cache flag state
+     */
+    public boolean getResetCache() {
+        return resetCache;
+    }
+
+    /**
+     * Returns the number of seconds before inactive objects timeout.
+     *
+     * @return <code>int</code> - Timeout period in seconds
+     */
+    public int getTOSeconds() {
+        return timeoutSeconds;
+    }
+
+    /**
+     * Returns the number of seconds between the timeout check cycles.
+     *
+     * @return <code>int</code> - Check period in seconds
+     */
+    public int getCheckSeconds() {
+        return checkSeconds;
+    }
+
+    /**
+     * Sets the source of the current time used to stamp entries and expire
+     * them, which may only be changed while the cache is empty.
+     *
+     * @param ticker The source of the current time
+     */
+    public void setTicker(Ticker ticker) {
+        if (ticker == null)
+            throw new IllegalArgumentException("You may not have a null ticker in a LongCache object");
+        if (!isEmpty())
+            throw new IllegalStateException("The ticker of a LongCache may only be set while it is empty");
+        this.ticker = ticker;
+    }
+
+    /**
+     * Returns the source of the current time used to stamp entries and expire
+     * them
+     *
+     * @return <code>Ticker</code> - the ticker
+     */
+    public Ticker getTicker() {
+        return ticker;
+    }
+
+    /**
+     * Caches the passed item, identifying it by the passed key value. A null
+     * value removes the item.
+     *
+     * @param key Key used to identify the property
+     * @param value Object Value object used to hold the property value
+     *
+     * @return <code>Object</code> - The value previously cached for the key
+     */
+    public E put(long key, E value) {
+        if (value == null)
+            return remove(key);
+
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# adding item " + key + ": " + value);
+
+        int hash = hash(key);
+        E prior = segmentFor(hash).put(hash, key, value, ticker.read());
+        // Checked on updates too, as the CacheManager may have been shut down since the key was added
+        if (!registered)
+            startHandler();
+        return prior;
+    }
+
+    /* End of put( long, Object ) method */
+
+    /**
+     * Retrieves the cached item specified by the passed key. If the reset
+     * cache flag is set to true, it will also reset the timestamp to prevent
+     * the item from timing out.
+     *
+     * @param key Key used to identify the property
+     *
+     * @return <code>Object</code> - The cached value, or null if it is not cached
+     */
+    public E get(long key) {
+        int hash = hash(key);
+        return segmentFor(hash).get(hash, key, ticker.read());
+    }
+
+    /* End of get( long ) method */
+
+    /**
+     * Returns whether an item that has not expired is cached for the key
+     *
+     * @param key Key used to identify the property
+     *
+     * @return <code>boolean</code> - true if the item is cached
+     */
+    public boolean containsKey(long key) {
+        int hash = hash(key);
+        return segmentFor(hash).contains(hash, key, ticker.read());
+    }
+
+    /**
+     * Removes the cached item specified by the passed key from the cache
+     *
+     * @param key Key used to identify the property
+     *
+     * @return <code>Object</code> - The value that was cached for the key
+     */
+    public E remove(long key) {
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# removing item " + key);
+
+        int hash = hash(key);
+        E prior = segmentFor(hash).remove(hash, key);
+        if (prior != null && registered && isEmpty())
+            stopHandler();
+        return prior;
+    }
+
+    /* End of remove( long ) method */
+
+    /**
+     * Clears the cache of any inactive objects
+     */
+    public void flush() {
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# Flushing cache...");
+
+        long now = ticker.read();
+        int expired = 0;
+        for (Segment segment : segments)
+            expired += segment.expire(now);
+
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# Flushed " + expired + " items");
+
+        // Unregisters once empty, so the CacheManager stops sweeping it
+        if (registered && isEmpty())
+            stopHandler();
+    }
+
+    /* End of flush() method */
+
+    /**
+     * Removes all items from the cache
+     */
+    public void clear() {
+        for (Segment segment : segments)
+            segment.clear();
+        if (registered)
+            stopHandler();
+    }
+
+    /**
+     * Returns the number of items in the cache
+     *
+     * @return <code>int</code> - The number of items in cache
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments)
+            size += segment.count;
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public String toString() {
+        StringBuilder b = new StringBuilder("{");
+        for (Segment segment : segments)
+            segment.append(b);
+        if (b.length() > 1)
+            b.setLength(b.length() - 2);
+        return b.append('}').toString();
+    }
+
+    /* Returns the timeout of an item in milliseconds */
+    private long getTimeoutMillis() {
+        return timeoutSeconds * 1000L;
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[(hash >>> SEGMENT_SHIFT) & (SEGMENTS - 1)];
+    }
+
+    /* Mixes the key so that sequential ids spread over the segments and slots */
+    private static int hash(long key) {
+        key = (key ^ (key >>> 33)) * 0xff51afd7ed558ccdL;
+        key = (key ^ (key >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return (int) (key ^ (key >>> 33));
+    }
+
+    /* Returns the power of two number of slots that holds the entries at a 3/4 load */
+    private static int tableSize(int entries) {
+        int slots = Integer.highestOneBit(Math.max(entries + (entries / 3), MINIMUM_SLOTS - 1));
+        return (slots < (1 << 30)) ? slots << 1 : slots;
+    }
+
+    /* Used to get the cache handler up and going */
+    private synchronized void startHandler() {
+        if (registered)
+            return;
+        registered = true;
+
+        if (log.isDebugEnabled()) log.debug("#CACHE# register");
+        CacheManager.register(sweepable);
+    }
+
+    /* Used to terminate the Cache Handler thread */
+    private synchronized void stopHandler() {
+        // Cleared before the size is checked, so a concurrent put that adds an
+        // item either sees it cleared and registers again or is seen here
+        boolean wasRegistered = registered;
+        registered = false;
+        if (!isEmpty()) {
+            registered = wasRegistered;
+            return;
+        }
+
+        if (log.isDebugEnabled()) log.debug("#CACHE# unregister");
+        CacheManager.unregister(sweepable);
+    }
+
+    /*
+     * Called by the CacheManager when it is shut down, so the next item put
+     * registers the cache with the manager that replaces it
+     */
+    synchronized void managerShutdown() {
+        registered = false;
+    }
+
+    /*
+     * A part of the cache with its own lock and table. An empty slot has a
+     * null value and a removed one the DELETED marker until the table is
+     * rebuilt.
+     */
+    private final class Segment {
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private long[] keys;
+        private Object[] values;
+        private long[] timestamps;
+        private int mask;
+        volatile int count;
+        private int used;
+
+        Segment(int slots) {
+            allocate(slots);
+        }
+
+        @SuppressWarnings("unchecked")
+        E put(int hash, long key, E value, long now) {
+            lock.lock();
+            try {
+                int slot = find(hash, key);
+                if (slot >= 0) {
+                    Object prior = values[slot];
+                    long timestamp = timestamps[slot];
+                    values[slot] = value;
+                    timestamps[slot] = now;
+                    // An expired value that has not been flushed yet is not returned
+                    return expired(timestamp, now) ? null : (E) prior;
+                }
+
+                slot = hash & mask;
+                while (values[slot] != null && values[slot] != DELETED)
+                    slot = (slot + 1) & mask;
+
+                if (values[slot] == null)
+                    used++;
+                keys[slot] = key;
+                values[slot] = value;
+                timestamps[slot] = now;
+                count++;
+
+                int slots = mask + 1;
+                if (used > slots - (slots >>> 2))
+                    rebuild((count > slots >>> 1) ? slots << 1 : slots);
+                return null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        E get(int hash, long key, long now) {
+            lock.lock();
+            try {
+                int slot = find(hash, key);
+                if (slot < 0)
+                    return null;
+
+                if (expired(timestamps[slot], now)) {
+                    removeSlot(slot);
+                    return null;
+                }
+
+                // Only reset the timestamp if the reset cache flag is true
+                if (resetCache)
+                    timestamps[slot] = now;
+                return (E) values[slot];
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean contains(int hash, long key, long now) {
+            lock.lock();
+            try {
+                int slot = find(hash, key);
+                return slot >= 0 && !expired(timestamps[slot], now);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        E remove(int hash, long key) {
+            lock.lock();
+            try {
+                int slot = find(hash, key);
+                if (slot < 0)
+                    return null;
+                E prior = (E) values[slot];
+                removeSlot(slot);
+                return prior;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int expire(long now) {
+            lock.lock();
+            try {
+                int expired = 0;
+                for (int slot = 0; slot <= mask; slot++) {
+                    Object value = values[slot];
+                    if (value != null && value != DELETED && expired(timestamps[slot], now)) {
+                        if (log.isDebugEnabled())
+                            log.debug("#CACHE# Removing item " + keys[slot] + ": " + timestamps[slot] + "-" + now);
+                        removeSlot(slot);
+                        expired++;
+                    }
+                }
+
+                // Clear out the deleted slots if they make up most of the table
+                if (used - count > (mask + 1) / 2)
+                    rebuild(mask + 1);
+                return expired;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void clear() {
+            lock.lock();
+            try {
+                allocate(tableSize(0));
+                count = 0;
+                used = 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void append(StringBuilder b) {
+            lock.lock();
+            try {
+                for (int slot = 0; slot <= mask; slot++) {
+                    Object value = values[slot];
+                    if (value != null && value != DELETED)
+                        b.append(keys[slot]).append('=').append(value).append(", ");
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean expired(long timestamp, long now) {
+            return timestamp + getTimeoutMillis() < now;
+        }
+
+        /* Returns the slot holding the key, or -1 if it is not in the table */
+        private int find(int hash, long key) {
+            int slot = hash & mask;
+            for (;;) {
+                Object value = values[slot];
+                if (value == null)
+                    return -1;
+                if (value != DELETED && keys[slot] == key)
+                    return slot;
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private void removeSlot(int slot) {
+            values[slot] = DELETED;
+            count--;
+        }
+
+        private void allocate(int slots) {
+            keys = new long[slots];
+            values = new Object[slots];
+            timestamps = new long[slots];
+            mask = slots - 1;
+        }
+
+        /* Copies the live entries into new arrays of the number of slots */
+        private void rebuild(int slots) {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            long[] oldTimestamps = timestamps;
+
+            allocate(slots);
+            used = count;
+
+            for (int i = 0; i < oldValues.length; i++) {
+                Object value = oldValues[i];
+                if (value == null || value == DELETED)
+                    continue;
+                int slot = hash(oldKeys[i]) & mask;
+                while (values[slot] != null)
+                    slot = (slot + 1) & mask;
+                keys[slot] = oldKeys[i];
+                values[slot] = value;
+                timestamps[slot] = oldTimestamps[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+package com.draagon.cache;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Ticker} whose time only changes when it is set or advanced, so
+ * tests can expire the entries of a {@link Cache} without waiting for them.
+ *
+ * @author Doug Mealing
+ */
+public class ManualTicker implements Ticker {
+
+    private final AtomicLong time;
+
+    /**
+     * Creates the ticker starting at the current time of the system clock
+     */
+    public ManualTicker() {
+        this(System.currentTimeMillis());
+    }
+
+    /**
+     * Creates the ticker starting at the specified time
+     *
+     * @param time The time to start at, in milliseconds
+     */
+    public ManualTicker(long time) {
+        this.time = new AtomicLong(time);
+    }
+
+    // End of constructors
+
+    public long read() {
+        return time.get();
+    }
+
+    /**
+     * Moves the time forward
+     *
+     * @param millis Number of milliseconds to move the time by
+     * @return <code>long</code> - the new time in milliseconds
+     */
+    public long advance(long millis) {
+        return time.addAndGet(millis);
+    }
+
+    /**
+     * Moves the time forward
+     *
+     * @param duration How long to move the time by, to millisecond precision
+     * @return <code>long</code> - the new time in milliseconds
+     */
+    public long advance(Duration duration) {
+        if (duration == null)
+            throw new IllegalArgumentException("You may not advance a ManualTicker by a null duration");
+        return advance(duration.toMillis());
+    }
+
+    /**
+     * Sets the time
+     *
+     * @param millis The new time in milliseconds
+     */
+    public void set(long millis) {
+        time.set(millis);
+    }
+
+    public String toString() {
+        return "ManualTicker[" + time.get() + "]";
+    }
+}
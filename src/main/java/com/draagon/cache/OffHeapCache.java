@@ -0,0 +1,710 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+package com.draagon.cache;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A Cache that stores its keys and values outside of the Java heap, so that
+ * very large caches add almost nothing for the garbage collector to trace.
+ * Keys and values are written as bytes by a {@link Serializer} into chunks of
+ * direct memory handed out by a slab allocator, and the hash index that finds
+ * them is kept in direct memory as well. The only Java objects that live as
+ * long as the cache are the slabs and the index buffers themselves.
+ * <p>
+ * Expiration works the same as for the {@link Cache}: an item expires a
+ * number of seconds after it was put or, if the reset cache flag is set, after
+ * it was last read. Expired items are removed when they are read and by the
+ * CacheManager's check cycles, which scan the off-heap index.
+ * <p>
+ * The cache is split into segments, each with its own lock, index and slabs.
+ * The capacity is the number of bytes of slabs the cache may reserve. Each
+ * item takes a chunk that is the next power of two above the size of its
+ * serialized key and value, plus a small header. When a segment runs out of
+ * capacity it first removes its expired items and then evicts items of the
+ * same chunk size until the new item fits. Items larger than a slab are not
+ * cached.
+ * <p>
+ * Keys are equal when their serialized forms are equal. Putting a null value
+ * removes the item.
+ *
+ * @author Doug Mealing
+ *
+ * @param <F> The class for the key
+ * @param <E> The class for the cached value
+ */
+public class OffHeapCache<F, E> {
+
+    private final static Log log = LogFactory.getLog(OffHeapCache.class);
+
+    private static final int SEGMENTS = 16;
+    private static final int SEGMENT_SHIFT = 28;
+    private static final int MAXIMUM_SLAB = 1 << 20;
+    private static final int MINIMUM_SLAB = 1 << 12;
+    private static final int INITIAL_SLOTS = 64;
+
+    /* Layout of an index slot: the record address plus one, and the key's hash */
+    private static final int SLOT_SIZE = 16;
+    private static final int SLOT_HASH = 8;
+    private static final long EMPTY = 0L;
+    private static final long DELETED = -1L;
+
+    /* Layout of a record: a header followed by the key and value bytes */
+    private static final int KEY_LENGTH = 0;
+    private static final int VALUE_LENGTH = 4;
+    private static final int TIMESTAMP = 8;
+    private static final int HEADER = 16;
+
+    private volatile boolean resetCache;
+    private volatile Ticker ticker = Ticker.systemTicker();
+
+    /* Whether the cache is registered with the CacheManager to be flushed */
+    private volatile boolean registered;
+
+    /* Stands in for the cache with the CacheManager, which only holds it weakly */
+    final Sweepable sweepable = new Sweepable() {
+        public int getCheckSeconds() {
+            return OffHeapCache.this.getCheckSeconds();
+        }
+
+        public int size() {
+            return OffHeapCache.this.size();
+        }
+
+        public void flush() {
+            OffHeapCache.this.flush();
+        }
+
+        public void managerShutdown() {
+            OffHeapCache.this.managerShutdown();
+        }
+    };
+
+    private final int checkSeconds;
+    private final int timeoutSeconds;
+    private final long capacity;
+
+    private final Serializer<F> keySerializer;
+    private final Serializer<E> valueSerializer;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final Segment[] segments = new OffHeapCache.Segment[SEGMENTS];
+
+    /**
+     * Create the cache specifing the check value, the element timeout, whether
+     * to reset on a read, the number of bytes of memory it may use and how to
+     * serialize the keys and values.
+     *
+     * @param resetOnRead Whether a cache item's expiration is reset after a get call
+     * @param checkSeconds Number of seconds between timeout check cycles.
+     * @param timeoutSeconds  Number of seconds before an inactive object times out.
+     * @param capacity Number of bytes of direct memory to hold the items in
+     * @param keySerializer Writes the keys as bytes
+     * @param valueSerializer Writes the values as bytes
+     */
+    public OffHeapCache(boolean resetOnRead, int checkSeconds, int timeoutSeconds, long capacity,
+            Serializer<F> keySerializer, Serializer<E> valueSerializer) {
+
+        if (capacity <= 0)
+            throw new IllegalArgumentException("The capacity of an OffHeapCache must be positive");
+        if (keySerializer == null || valueSerializer == null)
+            throw new IllegalArgumentException("You may not have a null serializer in an OffHeapCache object");
+
+        this.resetCache = resetOnRead;
+        this.checkSeconds = checkSeconds;
+        this.timeoutSeconds = timeoutSeconds;
+        this.capacity = capacity;
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+
+        long segmentCapacity = Math.max(capacity / SEGMENTS, 1L);
+        int slabSize = (int) Math.max(MINIMUM_SLAB, Math.min(MAXIMUM_SLAB, Long.highestOneBit(segmentCapacity)));
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment(new SlabAllocator(slabSize, segmentCapacity));
+    }
+
+    // End of constructors
+
+    /**
+     * Used to set the reset cache flag. If true, an item's timeout is reset
+     * each time it is read.
+     *
+     * @param state Whether the item timeouts are reset after each read
+     */
+    public void setResetCache(boolean state) {
+        resetCache = state;
+    }
+
+    /**
+     * Returns the state of the reset cache flag.
+     *
+     * @return <code>boolean</code> - Reset cache flag state
+     */
+    public boolean getResetCache() {
+        return resetCache;
+    }
+
+    /**
+     * Returns the number of seconds before inactive objects timeout.
+     *
+     * @return <code>int</code> - Timeout period in seconds
+     */
+    public int getTOSeconds() {
+        return timeoutSeconds;
+    }
+
+    /**
+     * Returns the number of seconds between the timeout check cycles.
+     *
+     * @return <code>int</code> - Check period in seconds
+     */
+    public int getCheckSeconds() {
+        return checkSeconds;
+    }
+
+    /**
+     * Sets the source of the current time used to stamp entries and expire
+     * them, which may only be changed while the cache is empty.
+     *
+     * @param ticker The source of the current time
+     */
+    public void setTicker(Ticker ticker) {
+        if (ticker == null)
+            throw new IllegalArgumentException("You may not have a null ticker in an OffHeapCache object");
+        if (!isEmpty())
+            throw new IllegalStateException("The ticker of an OffHeapCache may only be set while it is empty");
+        this.ticker = ticker;
+    }
+
+    /**
+     * Returns the source of the current time used to stamp entries and expire
+     * them
+     *
+     * @return <code>Ticker</code> - the ticker
+     */
+    public Ticker getTicker() {
+        return ticker;
+    }
+
+    /**
+     * Returns the number of bytes of direct memory the items may be held in
+     *
+     * @return <code>long</code> - The capacity in bytes
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of bytes of direct memory reserved so far for the
+     * items, not counting the index
+     *
+     * @return <code>long</code> - The reserved bytes
+     */
+    public long getReservedBytes() {
+        long reserved = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                reserved += segment.allocator.reserved();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return reserved;
+    }
+
+    /**
+     * Caches the passed item, identifying it by the passed key value. A null
+     * value removes the item.
+     *
+     * @param key Object Key object used to identify the property
+     * @param value Object Value object used to hold the property value
+     */
+    public void put(F key, E value) {
+
+        if (key == null) return;
+
+        if (value == null) {
+            remove(key);
+            return;
+        }
+
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# adding item " + key + ": " + value);
+
+        byte[] k = keySerializer.serialize(key);
+        byte[] v = valueSerializer.serialize(value);
+        int hash = hash(k);
+
+        // Checked on updates too, as the CacheManager may have been shut down since the key was added
+        if (segmentFor(hash).put(hash, k, v, ticker.read()) && !registered)
+            startHandler();
+    }
+
+    /* End of put( Object, Object ) method */
+
+    /**
+     * Retrieves the cached item specified by the passed key object. If the
+     * reset cache flag is set to true, it will also reset the timestamp to
+     * prevent the item from timing out.
+     *
+     * @param key Object Key object used to identify the property
+     *
+     * @return <code>Object</code> - The cached value, or null if it is not cached
+     */
+    public E get(F key) {
+        if (key == null)
+            return null;
+
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# getting item " + key);
+
+        byte[] k = keySerializer.serialize(key);
+        int hash = hash(k);
+
+        // Copy the bytes under the lock but deserialize them outside of it
+        byte[] v = segmentFor(hash).get(hash, k, ticker.read());
+        return (v == null) ? null : valueSerializer.deserialize(v);
+    }
+
+    /* End of get( Object ) method */
+
+    /**
+     * Returns whether an item that has not expired is cached for the key
+     *
+     * @param key Object Key object used to identify the property
+     *
+     * @return <code>boolean</code> - true if the item is cached
+     */
+    public boolean containsKey(F key) {
+        if (key == null)
+            return false;
+
+        byte[] k = keySerializer.serialize(key);
+        int hash = hash(k);
+        return segmentFor(hash).contains(hash, k, ticker.read());
+    }
+
+    /**
+     * Removes the cached item specified by the passed key object from the cache
+     *
+     * @param key Object Key object used to identify the property
+     *
+     * @return <code>boolean</code> - true if an item was removed
+     */
+    public boolean remove(F key) {
+        if (key == null)
+            return false;
+
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# removing item " + key);
+
+        byte[] k = keySerializer.serialize(key);
+        int hash = hash(k);
+        boolean removed = segmentFor(hash).remove(hash, k);
+        if (removed && registered && isEmpty())
+            stopHandler();
+        return removed;
+    }
+
+    /* End of remove( Object ) method */
+
+    /**
+     * Clears the cache of any inactive objects
+     */
+    public void flush() {
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# Flushing cache...");
+
+        long now = ticker.read();
+        int expired = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                expired += segment.expire(now);
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+
+        if (log.isDebugEnabled())
+            log.debug("#CACHE# Flushed " + expired + " items");
+
+        // Unregisters once empty, so the CacheManager stops sweeping it
+        if (registered && isEmpty())
+            stopHandler();
+    }
+
+    /* End of flush() method */
+
+    /**
+     * Removes all items from the cache and releases the memory they were
+     * held in
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                segment.clear();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        if (registered)
+            stopHandler();
+    }
+
+    /**
+     * Returns the number of items in the cache
+     *
+     * @return <code>int</code> - The number of items in cache
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments)
+            size += segment.count;
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public String toString() {
+        return "OffHeapCache[size=" + size() + ",reserved=" + getReservedBytes() + "]";
+    }
+
+    /* Returns the timeout of an item in milliseconds */
+    private long getTimeoutMillis() {
+        return timeoutSeconds * 1000L;
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[(hash >>> SEGMENT_SHIFT) & (SEGMENTS - 1)];
+    }
+
+    /* Hashes the serialized key, spreading the bits for both the segment and the slot */
+    private static int hash(byte[] key) {
+        int h = 1;
+        for (byte b : key)
+            h = 31 * h + b;
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /* Used to get the cache handler up and going */
+    private synchronized void startHandler() {
+        if (registered)
+            return;
+        registered = true;
+
+        if (log.isDebugEnabled()) log.debug("#CACHE# register");
+        CacheManager.register(sweepable);
+    }
+
+    /* Used to terminate the Cache Handler thread */
+    private synchronized void stopHandler() {
+        // Cleared before the size is checked, so a concurrent put that adds an
+        // item either sees it cleared and registers again or is seen here
+        boolean wasRegistered = registered;
+        registered = false;
+        if (!isEmpty()) {
+            registered = wasRegistered;
+            return;
+        }
+
+        if (log.isDebugEnabled()) log.debug("#CACHE# unregister");
+        CacheManager.unregister(sweepable);
+    }
+
+    /*
+     * Called by the CacheManager when it is shut down, so the next item put
+     * registers the cache with the manager that replaces it
+     */
+    synchronized void managerShutdown() {
+        registered = false;
+    }
+
+    /*
+     * A part of the cache with its own lock, slabs and index. The index is an
+     * open addressing table with linear probing, where each slot holds the
+     * address of a record and the hash of its key. Removed slots are marked as
+     * deleted until the table is rebuilt.
+     */
+    private final class Segment {
+
+        final ReentrantLock lock = new ReentrantLock();
+        final SlabAllocator allocator;
+
+        private ByteBuffer index;
+        private int mask;
+        volatile int count;
+        private int used;
+        private int evictCursor;
+
+        Segment(SlabAllocator allocator) {
+            this.allocator = allocator;
+            this.index = ByteBuffer.allocateDirect(INITIAL_SLOTS * SLOT_SIZE);
+            this.mask = INITIAL_SLOTS - 1;
+        }
+
+        /* Stores the item, returning false if there was no room for it */
+        boolean put(int hash, byte[] key, byte[] value, long now) {
+            lock.lock();
+            try {
+                int size = HEADER + key.length + value.length;
+
+                long address = allocate(size, now);
+                if (address == SlabAllocator.NONE) {
+                    // Make room from the item being replaced, which is stale either way
+                    int slot = find(hash, key);
+                    if (slot >= 0) {
+                        removeSlot(slot);
+                        address = allocate(size, now);
+                    }
+                }
+                if (address == SlabAllocator.NONE) {
+                    log.warn("#CACHE# No room for item of " + size + " bytes");
+                    return false;
+                }
+
+                ByteBuffer slab = allocator.slab(address);
+                int offset = SlabAllocator.offset(address);
+                slab.putInt(offset + KEY_LENGTH, key.length);
+                slab.putInt(offset + VALUE_LENGTH, value.length);
+                slab.putLong(offset + TIMESTAMP, now);
+                allocator.write(address, HEADER, key);
+                allocator.write(address, HEADER + key.length, value);
+
+                // Looked up after allocating, as that may have evicted items and moved the slots
+                int slot = find(hash, key);
+                if (slot >= 0) {
+                    freeRecord(index.getLong(slot * SLOT_SIZE) - 1);
+                    index.putLong(slot * SLOT_SIZE, address + 1);
+                    return true;
+                }
+
+                insert(hash, address);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /* Copies out the value of an item that has not expired */
+        byte[] get(int hash, byte[] key, long now) {
+            lock.lock();
+            try {
+                int slot = find(hash, key);
+                if (slot < 0)
+                    return null;
+
+                long address = index.getLong(slot * SLOT_SIZE) - 1;
+                ByteBuffer slab = allocator.slab(address);
+                int offset = SlabAllocator.offset(address);
+                if (expired(slab, offset, now)) {
+                    removeSlot(slot);
+                    return null;
+                }
+
+                // Only reset the timestamp if the reset cache flag is true
+                if (resetCache)
+                    slab.putLong(offset + TIMESTAMP, now);
+
+                byte[] value = new byte[slab.getInt(offset + VALUE_LENGTH)];
+                allocator.read(address, HEADER + slab.getInt(offset + KEY_LENGTH), value);
+                return value;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean contains(int hash, byte[] key, long now) {
+            lock.lock();
+            try {
+                int slot = find(hash, key);
+                if (slot < 0)
+                    return false;
+                long address = index.getLong(slot * SLOT_SIZE) - 1;
+                return !expired(allocator.slab(address), SlabAllocator.offset(address), now);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean remove(int hash, byte[] key) {
+            lock.lock();
+            try {
+                int slot = find(hash, key);
+                if (slot < 0)
+                    return false;
+                removeSlot(slot);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /* Removes the expired items. Called while holding the lock. */
+        int expire(long now) {
+            int expired = 0;
+            for (int slot = 0; slot <= mask; slot++) {
+                long stored = index.getLong(slot * SLOT_SIZE);
+                if (stored == EMPTY || stored == DELETED)
+                    continue;
+                long address = stored - 1;
+                if (expired(allocator.slab(address), SlabAllocator.offset(address), now)) {
+                    removeSlot(slot);
+                    expired++;
+                }
+            }
+
+            // Clear out the deleted slots if they make up most of the table
+            if (used - count > (mask + 1) / 2)
+                rebuild(mask + 1);
+            return expired;
+        }
+
+        /* Called while holding the lock */
+        void clear() {
+            allocator.clear();
+            index = ByteBuffer.allocateDirect(INITIAL_SLOTS * SLOT_SIZE);
+            mask = INITIAL_SLOTS - 1;
+            count = 0;
+            used = 0;
+            evictCursor = 0;
+        }
+
+        private boolean expired(ByteBuffer slab, int offset, long now) {
+            return slab.getLong(offset + TIMESTAMP) + getTimeoutMillis() < now;
+        }
+
+        /* Returns the slot holding the key, or -1 if it is not in the index */
+        private int find(int hash, byte[] key) {
+            int slot = hash & mask;
+            for (;;) {
+                long stored = index.getLong(slot * SLOT_SIZE);
+                if (stored == EMPTY)
+                    return -1;
+                if (stored != DELETED && index.getInt(slot * SLOT_SIZE + SLOT_HASH) == hash
+                        && keyEquals(stored - 1, key))
+                    return slot;
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private boolean keyEquals(long address, byte[] key) {
+            ByteBuffer slab = allocator.slab(address);
+            int offset = SlabAllocator.offset(address);
+            if (slab.getInt(offset + KEY_LENGTH) != key.length)
+                return false;
+            for (int i = 0; i < key.length; i++) {
+                if (slab.get(offset + HEADER + i) != key[i])
+                    return false;
+            }
+            return true;
+        }
+
+        /* Adds a record to the index, growing or rebuilding the index when it gets full */
+        private void insert(int hash, long address) {
+            int slot = hash & mask;
+            long stored;
+            while ((stored = index.getLong(slot * SLOT_SIZE)) != EMPTY && stored != DELETED)
+                slot = (slot + 1) & mask;
+
+            if (stored == EMPTY)
+                used++;
+            index.putLong(slot * SLOT_SIZE, address + 1);
+            index.putInt(slot * SLOT_SIZE + SLOT_HASH, hash);
+            count++;
+
+            int slots = mask + 1;
+            if (used > slots - (slots >>> 2))
+                rebuild((count > slots >>> 1) ? slots << 1 : slots);
+        }
+
+        /* Copies the live records into a new index of the number of slots */
+        private void rebuild(int slots) {
+            ByteBuffer old = index;
+            int oldSlots = mask + 1;
+
+            index = ByteBuffer.allocateDirect(slots * SLOT_SIZE);
+            mask = slots - 1;
+            used = count;
+            evictCursor = 0;
+
+            for (int i = 0; i < oldSlots; i++) {
+                long stored = old.getLong(i * SLOT_SIZE);
+                if (stored == EMPTY || stored == DELETED)
+                    continue;
+                int hash = old.getInt(i * SLOT_SIZE + SLOT_HASH);
+                int slot = hash & mask;
+                while (index.getLong(slot * SLOT_SIZE) != EMPTY)
+                    slot = (slot + 1) & mask;
+                index.putLong(slot * SLOT_SIZE, stored);
+                index.putInt(slot * SLOT_SIZE + SLOT_HASH, hash);
+            }
+        }
+
+        private void removeSlot(int slot) {
+            freeRecord(index.getLong(slot * SLOT_SIZE) - 1);
+            index.putLong(slot * SLOT_SIZE, DELETED);
+            count--;
+        }
+
+        private void freeRecord(long address) {
+            ByteBuffer slab = allocator.slab(address);
+            int offset = SlabAllocator.offset(address);
+            allocator.free(address, HEADER + slab.getInt(offset + KEY_LENGTH) + slab.getInt(offset + VALUE_LENGTH));
+        }
+
+        /*
+         * Allocates a record, removing the expired items and then evicting
+         * items with the same chunk size if the segment is out of capacity
+         */
+        private long allocate(int size, long now) {
+            long address = allocator.allocate(size);
+            if (address != SlabAllocator.NONE || size > allocator.maximumChunk())
+                return address;
+
+            expire(now);
+            address = allocator.allocate(size);
+            while (address == SlabAllocator.NONE && evict(allocator.sizeClass(size)))
+                address = allocator.allocate(size);
+            return address;
+        }
+
+        /* Evicts the next item after the cursor whose chunk is of the size class */
+        private boolean evict(int sizeClass) {
+            int slots = mask + 1;
+            for (int i = 0; i < slots; i++) {
+                int slot = (evictCursor + i) & mask;
+                long stored = index.getLong(slot * SLOT_SIZE);
+                if (stored == EMPTY || stored == DELETED)
+                    continue;
+
+                long address = stored - 1;
+                ByteBuffer slab = allocator.slab(address);
+                int offset = SlabAllocator.offset(address);
+                int size = HEADER + slab.getInt(offset + KEY_LENGTH) + slab.getInt(offset + VALUE_LENGTH);
+                if (allocator.sizeClass(size) == sizeClass) {
+                    if (log.isDebugEnabled())
+                        log.debug("#CACHE# Evicting item of " + size + " bytes");
+                    removeSlot(slot);
+                    evictCursor = slot + 1;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
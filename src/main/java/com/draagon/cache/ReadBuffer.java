@@ -0,0 +1,136 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+package com.draagon.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Records the entries that were read so that the reordering they cause can be
+ * replayed in batches by whichever thread holds the eviction lock, rather than
+ * every reader taking the lock. The buffer is striped by thread to reduce
+ * contention, with each stripe being a small bounded ring buffer.
+ * <p>
+ * The buffer is lossy: if a stripe is full or another reader won the race for
+ * the slot the read is simply dropped. Losing a few reorderings only makes the
+ * access order slightly less precise, whereas blocking readers would not be
+ * acceptable.
+ * <p>
+ * Any number of threads may offer to the buffer, but it may only be drained by
+ * one thread at a time.
+ *
+ * @author Doug Mealing
+ *
+ * @param <E> The type of entry recorded in the buffer
+ */
+final class ReadBuffer<E> {
+
+    /**
+     * Called with each entry as the buffer is drained
+     */
+    interface Consumer<E> {
+        void accept(E entry);
+    }
+
+    /* Result of an offer */
+    static final int SUCCESS = 0;
+    static final int FULL = 1;
+    static final int FAILED = 2;
+
+    /* Number of reads held by each stripe */
+    static final int BUFFER_SIZE = 16;
+    private static final int BUFFER_MASK = BUFFER_SIZE - 1;
+
+    private static final int MAXIMUM_STRIPES = 64;
+    private static final int STRIPES = ceilingPowerOfTwo(
+            Math.min(Runtime.getRuntime().availableProcessors(), MAXIMUM_STRIPES));
+
+    /* Stripes are only created once a thread mapped to them reads */
+    private final AtomicReferenceArray<Stripe<E>> stripes = new AtomicReferenceArray<Stripe<E>>(STRIPES);
+
+    /**
+     * Records the read of an entry, dropping it if the buffer is full
+     *
+     * @param entry The entry that was read
+     * @return {@link #SUCCESS}, {@link #FULL} if the stripe needs to be
+     *         drained, or {@link #FAILED} if the read was dropped due to
+     *         contention
+     */
+    int offer(E entry) {
+        int index = stripeIndex();
+        Stripe<E> stripe = stripes.get(index);
+        if (stripe == null) {
+            stripes.compareAndSet(index, null, new Stripe<E>());
+            stripe = stripes.get(index);
+        }
+        return stripe.offer(entry);
+    }
+
+    /**
+     * Hands each recorded read to the consumer, emptying the buffer
+     *
+     * @param consumer Called with each entry that was read
+     */
+    void drainTo(Consumer<E> consumer) {
+        for (int i = 0; i < STRIPES; i++) {
+            Stripe<E> stripe = stripes.get(i);
+            if (stripe != null) {
+                stripe.drainTo(consumer);
+            }
+        }
+    }
+
+    /* Maps the current thread to a stripe */
+    private static int stripeIndex() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32)) * 0x9e3779b9;
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    private static int ceilingPowerOfTwo(int x) {
+        return (x <= 1) ? 1 : Integer.highestOneBit(x - 1) << 1;
+    }
+
+    /* A bounded ring buffer with many producers and a single consumer */
+    private static final class Stripe<E> {
+
+        private final AtomicReferenceArray<E> buffer = new AtomicReferenceArray<E>(BUFFER_SIZE);
+        private final AtomicLong writeCounter = new AtomicLong();
+        private volatile long readCounter;
+
+        int offer(E entry) {
+            long head = readCounter;
+            long tail = writeCounter.get();
+            long size = tail - head;
+            if (size >= BUFFER_SIZE) {
+                return FULL;
+            }
+            if (writeCounter.compareAndSet(tail, tail + 1)) {
+                buffer.lazySet((int) tail & BUFFER_MASK, entry);
+                return (size + 1 >= BUFFER_SIZE) ? FULL : SUCCESS;
+            }
+            return FAILED;
+        }
+
+        void drainTo(Consumer<E> consumer) {
+            long head = readCounter;
+            long tail = writeCounter.get();
+            while (head < tail) {
+                int index = (int) head & BUFFER_MASK;
+                E entry = buffer.get(index);
+                if (entry == null) {
+                    // The slot was claimed but the entry is not yet published
+                    break;
+                }
+                buffer.lazySet(index, null);
+                consumer.accept(entry);
+                head++;
+            }
+            readCounter = head;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+package com.draagon.cache;
+
+/**
+ * Converts the keys or values of a cache that stores them outside of the Java
+ * heap, such as the {@link OffHeapCache}, to and from bytes.
+ * <p>
+ * Two keys are treated as equal when their serialized forms are equal, so a
+ * key serializer must always write equal keys as the same bytes.
+ *
+ * @author Doug Mealing
+ *
+ * @param <T> The class that is serialized
+ */
+public interface Serializer<T> {
+
+    /**
+     * Writes the object as bytes
+     *
+     * @param object The object to write, which is never null
+     * @return the bytes of the object
+     */
+    byte[] serialize(T object);
+
+    /**
+     * Reads an object back from the bytes it was written as
+     *
+     * @param bytes The bytes of the object
+     * @return the object
+     */
+    T deserialize(byte[] bytes);
+}
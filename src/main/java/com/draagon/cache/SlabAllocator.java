@@ -0,0 +1,169 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+package com.draagon.cache;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Allocates chunks of memory outside of the Java heap. Memory is reserved in
+ * direct ByteBuffer slabs of a fixed size, and each slab is carved into
+ * chunks of one size class, the sizes being powers of two. A freed chunk is
+ * pushed onto the free list of its size class, with the list's links stored
+ * in the free chunks themselves, so the allocator holds no Java objects per
+ * chunk.
+ * <p>
+ * A chunk is identified by its address, which holds the index of its slab in
+ * the high 32 bits and its offset in the slab in the low 32 bits.
+ * <p>
+ * This class is not thread-safe and is guarded by the owning segment's lock.
+ *
+ * @author Doug Mealing
+ */
+final class SlabAllocator {
+
+    static final long NONE = -1L;
+
+    /* The smallest chunk is 64 bytes */
+    private static final int MINIMUM_SHIFT = 6;
+
+    private final int slabShift;
+    private final int maximumSlabs;
+    private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+
+    /* Per size class, the first free chunk and the slab currently being carved */
+    private final long[] freeLists;
+    private final int[] carveSlab;
+    private final int[] carveOffset;
+
+    /**
+     * Creates an allocator that may reserve up to the capacity in bytes
+     *
+     * @param slabSize Size of each slab, which is rounded up to a power of two
+     * @param capacity Maximum number of bytes to reserve, at least one slab
+     */
+    SlabAllocator(int slabSize, long capacity) {
+        slabShift = 32 - Integer.numberOfLeadingZeros(Math.max(slabSize, 1 << MINIMUM_SHIFT) - 1);
+        maximumSlabs = (int) Math.max(1L, Math.min(Integer.MAX_VALUE, capacity >>> slabShift));
+
+        int classes = slabShift - MINIMUM_SHIFT + 1;
+        freeLists = new long[classes];
+        carveSlab = new int[classes];
+        carveOffset = new int[classes];
+        clear();
+    }
+
+    /**
+     * Returns the largest chunk that can be allocated
+     */
+    int maximumChunk() {
+        return 1 << slabShift;
+    }
+
+    /**
+     * Returns the number of bytes reserved in slabs
+     */
+    long reserved() {
+        return (long) slabs.size() << slabShift;
+    }
+
+    /**
+     * Returns the size class of a chunk able to hold the number of bytes
+     */
+    int sizeClass(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1 << MINIMUM_SHIFT) - 1);
+        return shift - MINIMUM_SHIFT;
+    }
+
+    /**
+     * Allocates a chunk able to hold the number of bytes
+     *
+     * @return the address of the chunk, or {@link #NONE} if the capacity is used up
+     */
+    long allocate(int size) {
+        if (size > maximumChunk())
+            return NONE;
+
+        int sizeClass = sizeClass(size);
+        long address = freeLists[sizeClass];
+        if (address != NONE) {
+            freeLists[sizeClass] = slab(address).getLong(offset(address));
+            return address;
+        }
+
+        int chunk = 1 << (sizeClass + MINIMUM_SHIFT);
+        if (carveSlab[sizeClass] < 0 || carveOffset[sizeClass] + chunk > maximumChunk()) {
+            if (slabs.size() >= maximumSlabs)
+                return NONE;
+            carveSlab[sizeClass] = slabs.size();
+            carveOffset[sizeClass] = 0;
+            slabs.add(ByteBuffer.allocateDirect(maximumChunk()));
+        }
+
+        address = ((long) carveSlab[sizeClass] << 32) | carveOffset[sizeClass];
+        carveOffset[sizeClass] += chunk;
+        return address;
+    }
+
+    /**
+     * Returns a chunk to the free list of its size class
+     *
+     * @param address Address of the chunk
+     * @param size Number of bytes the chunk was allocated for
+     */
+    void free(long address, int size) {
+        int sizeClass = sizeClass(size);
+        slab(address).putLong(offset(address), freeLists[sizeClass]);
+        freeLists[sizeClass] = address;
+    }
+
+    /**
+     * Releases all of the slabs, freeing every chunk
+     */
+    void clear() {
+        slabs.clear();
+        for (int i = 0; i < freeLists.length; i++) {
+            freeLists[i] = NONE;
+            carveSlab[i] = -1;
+        }
+    }
+
+    /**
+     * Returns the slab holding the chunk
+     */
+    ByteBuffer slab(long address) {
+        return slabs.get((int) (address >>> 32));
+    }
+
+    /**
+     * Returns the offset of the chunk in its slab
+     */
+    static int offset(long address) {
+        return (int) address;
+    }
+
+    /**
+     * Copies the bytes into the chunk, starting at the position in the chunk
+     */
+    void write(long address, int position, byte[] bytes) {
+        ByteBuffer slab = slab(address);
+        // Cast so this links against Java 8, where position() is only on Buffer
+        ((Buffer) slab).position(offset(address) + position);
+        slab.put(bytes);
+    }
+
+    /**
+     * Copies bytes out of the chunk, starting at the position in the chunk
+     */
+    void read(long address, int position, byte[] bytes) {
+        ByteBuffer slab = slab(address);
+        ((Buffer) slab).position(offset(address) + position);
+        slab.get(bytes);
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+package com.draagon.cache;
+
+/**
+ * A cache whose expired entries are flushed out by the CacheManager. Each
+ * cache registers an instance it holds rather than implementing this itself,
+ * so the calls only the manager makes are not part of its public API.
+ *
+ * @author Doug Mealing
+ */
+interface Sweepable {
+
+    /**
+     * Returns the number of seconds between the timeout check cycles
+     */
+    int getCheckSeconds();
+
+    /**
+     * Returns the number of entries in the cache
+     */
+    int size();
+
+    /**
+     * Removes the expired entries from the cache
+     */
+    void flush();
+
+    /**
+     * Removes the expired entries from the cache, stopping early if that
+     * would hold up other threads for too long. By default this flushes the
+     * whole cache.
+     *
+     * @return true if expired entries remain, so the cache should be swept again soon
+     */
+    default boolean sweep() {
+        flush();
+        return false;
+    }
+
+    /**
+     * Called by a CacheManager that the cache was registered with when it is
+     * shut down, after which the cache has to register again to be swept
+     */
+    void managerShutdown();
+}
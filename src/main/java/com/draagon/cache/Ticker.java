@@ -0,0 +1,58 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+package com.draagon.cache;
+
+/**
+ * The source of the current time used by a {@link Cache}, {@link LongCache},
+ * {@link ArrayCache} or {@link OffHeapCache} to stamp entries and decide when
+ * they have expired. The time is in milliseconds since the
+ * epoch, as expiration times are also written to snapshots and disk overflow
+ * files that outlive the process.
+ * <p>
+ * The {@link #systemTicker() system ticker} reads the clock on every call. A
+ * {@link CoarseTicker} reads a time that a background thread updates, which
+ * is cheaper when the cache is read very often and the expiration times do
+ * not need to be precise. A {@link ManualTicker} only moves when it is told
+ * to, which lets tests expire entries without waiting.
+ *
+ * @author Doug Mealing
+ */
+public interface Ticker {
+
+    /**
+     * Returns the current time
+     *
+     * @return the current time in milliseconds
+     */
+    long read();
+
+    /**
+     * Returns the ticker that reads the system clock on every call
+     *
+     * @return <code>Ticker</code> - the system ticker
+     */
+    static Ticker systemTicker() {
+        return SystemTicker.INSTANCE;
+    }
+
+    /* Reads System.currentTimeMillis() */
+    final class SystemTicker implements Ticker {
+
+        static final Ticker INSTANCE = new SystemTicker();
+
+        private SystemTicker() {
+        }
+
+        public long read() {
+            return System.currentTimeMillis();
+        }
+
+        public String toString() {
+            return "SystemTicker";
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+package com.draagon.cache;
+
+/**
+ * A hierarchical timing wheel that indexes cache entries by the time they
+ * expire, so that a sweep only visits the buckets whose time has come rather
+ * than every entry in the cache.
+ * <p>
+ * The wheel has a level for seconds, minutes, hours and days, each made up of
+ * buckets spanning a power of two milliseconds, plus an overflow bucket for
+ * anything further out. When the wheel is advanced the buckets that have been
+ * passed are emptied, with due entries handed to an {@link Expirer} and the
+ * rest rescheduled into a lower, finer grained level.
+ * <p>
+ * This class is not thread-safe and is guarded by the owning Cache's eviction
+ * lock.
+ *
+ * @author Doug Mealing
+ *
+ * @param <E> The type of entry held in the wheel
+ */
+final class TimerWheel<E extends TimerWheel.Timer> {
+
+    /**
+     * An entry that can be scheduled on a TimerWheel
+     */
+    interface Timer {
+
+        /** Returns the time in milliseconds at which the entry expires */
+        long getVariableTime();
+
+        void setVariableTime(long time);
+
+        Timer getPreviousInVariableOrder();
+
+        void setPreviousInVariableOrder(Timer prev);
+
+        Timer getNextInVariableOrder();
+
+        void setNextInVariableOrder(Timer next);
+    }
+
+    /**
+     * Called for each entry whose scheduled time has passed
+     */
+    interface Expirer<E> {
+
+        /**
+         * Expires the entry if it is still due, otherwise updates its
+         * variable time to its current expiration time.
+         *
+         * @param entry The entry whose scheduled time has passed
+         * @param now The current time in milliseconds
+         * @return true if the entry is gone, false if it must be rescheduled
+         */
+        boolean expire(E entry, long now);
+
+        /**
+         * Returns whether the expirer declined the last entry because it will
+         * not expire any more in this advance, in which case the wheel stops
+         * and leaves the entries it has not reached where they are.
+         *
+         * @return true to stop advancing the wheel
+         */
+        default boolean isExhausted() {
+            return false;
+        }
+    }
+
+    /* Number of buckets in each level: seconds, minutes, hours, days and overflow */
+    static final int[] BUCKETS = { 64, 64, 32, 4, 1 };
+
+    /* Milliseconds spanned by a bucket, being powers of two near 1s, 1m, 1h, 1d */
+    static final long[] SPANS = {
+        1L << 10, // 1.02s
+        1L << 16, // 1.09m
+        1L << 22, // 1.17h
+        1L << 27, // 1.55d
+        1L << 29, // 6.21d
+        1L << 29, // 6.21d
+    };
+
+    static final int[] SHIFT = { 10, 16, 22, 27, 29 };
+
+    private final Sentinel[][] wheel;
+    private long time;
+
+    /* Whether the expirer stopped the advance in progress */
+    private boolean stopped;
+
+    /**
+     * Creates a wheel whose current time is the specified time
+     *
+     * @param now The current time in milliseconds
+     */
+    TimerWheel(long now) {
+        time = now;
+        wheel = new Sentinel[BUCKETS.length][];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new Sentinel[BUCKETS[i]];
+            for (int j = 0; j < wheel[i].length; j++) {
+                wheel[i][j] = new Sentinel();
+            }
+        }
+    }
+
+    /**
+     * Adds the entry to the bucket for its variable time
+     *
+     * @param entry The entry to schedule
+     */
+    void schedule(E entry) {
+        Sentinel sentinel = findBucket(entry.getVariableTime());
+        Timer last = sentinel.getPreviousInVariableOrder();
+        entry.setPreviousInVariableOrder(last);
+        entry.setNextInVariableOrder(sentinel);
+        last.setNextInVariableOrder(entry);
+        sentinel.setPreviousInVariableOrder(entry);
+    }
+
+    /**
+     * Moves the entry to the bucket for its updated variable time
+     *
+     * @param entry The entry to reschedule
+     */
+    void reschedule(E entry) {
+        if (entry.getNextInVariableOrder() != null) {
+            unlink(entry);
+            schedule(entry);
+        }
+    }
+
+    /**
+     * Removes the entry from the wheel if it is scheduled
+     *
+     * @param entry The entry to remove
+     */
+    void deschedule(E entry) {
+        if (entry.getNextInVariableOrder() != null) {
+            unlink(entry);
+        }
+    }
+
+    /**
+     * Advances the wheel to the current time, expiring the entries in every
+     * bucket that has been passed since the last time it was advanced. If the
+     * expirer is exhausted part way through, the wheel's time is left at the
+     * bucket it stopped in, so the next advance carries on from there.
+     *
+     * @param now The current time in milliseconds
+     * @param expirer Called with each entry that is due
+     * @return the number of entries that were expired
+     */
+    int advance(long now, Expirer<E> expirer) {
+        long previous = time;
+        time = now;
+
+        // The clock went backwards, so nothing new can have expired
+        if (now <= previous) {
+            return 0;
+        }
+
+        int expired = 0;
+        stopped = false;
+        for (int i = 0; i < SHIFT.length && !stopped; i++) {
+            long previousTicks = previous >>> SHIFT[i];
+            long currentTicks = now >>> SHIFT[i];
+            if (currentTicks - previousTicks <= 0L) {
+                break;
+            }
+            expired += expire(i, previousTicks, currentTicks - previousTicks, now, expirer);
+        }
+        return expired;
+    }
+
+    /* Empties the buckets of the level that were passed, rescheduling those not yet due */
+    @SuppressWarnings("unchecked")
+    private int expire(int level, long previousTicks, long delta, long now, Expirer<E> expirer) {
+        Sentinel[] timerWheel = wheel[level];
+        int mask = timerWheel.length - 1;
+        int steps = (int) Math.min(delta + 1, timerWheel.length);
+        int start = (int) (previousTicks & mask);
+        int end = start + steps;
+
+        int expired = 0;
+        for (int i = start; i < end; i++) {
+            // Taken off the bucket, so entries rescheduled into it are not visited again
+            Sentinel sentinel = timerWheel[i & mask];
+            Timer node = sentinel.getNextInVariableOrder();
+            Timer last = sentinel.getPreviousInVariableOrder();
+            sentinel.setPreviousInVariableOrder(sentinel);
+            sentinel.setNextInVariableOrder(sentinel);
+
+            while (node != sentinel) {
+                Timer next = node.getNextInVariableOrder();
+                node.setPreviousInVariableOrder(null);
+                node.setNextInVariableOrder(null);
+
+                E entry = (E) node;
+                if (entry.getVariableTime() >= now) {
+                    schedule(entry);
+                } else if (expirer.expire(entry, now)) {
+                    expired++;
+                } else if (expirer.isExhausted()) {
+                    restore(sentinel, node, next, last);
+
+                    // Just before the bucket, so the next advance visits it
+                    // even if the clock has not reached the next bucket
+                    time = ((previousTicks + (i - start)) << SHIFT[level]) - 1L;
+                    stopped = true;
+                    return expired;
+                } else {
+                    schedule(entry);
+                }
+                node = next;
+            }
+        }
+        return expired;
+    }
+
+    /*
+     * Puts an entry and the rest of the bucket it was taken off, which are
+     * still linked to each other, back at the head of the bucket
+     */
+    private void restore(Sentinel sentinel, Timer node, Timer next, Timer last) {
+        if (next == sentinel) {
+            last = node;
+        } else {
+            node.setNextInVariableOrder(next);
+            next.setPreviousInVariableOrder(node);
+        }
+
+        Timer first = sentinel.getNextInVariableOrder();
+        node.setPreviousInVariableOrder(sentinel);
+        sentinel.setNextInVariableOrder(node);
+        last.setNextInVariableOrder(first);
+        first.setPreviousInVariableOrder(last);
+    }
+
+    /* Returns the bucket for the time, using the finest level that can hold it */
+    private Sentinel findBucket(long variableTime) {
+        long duration = variableTime - time;
+        long bucketTime = Math.max(variableTime, time);
+        int length = wheel.length - 1;
+        for (int i = 0; i < length; i++) {
+            if (duration < SPANS[i + 1]) {
+                long ticks = bucketTime >>> SHIFT[i];
+                int index = (int) (ticks & (wheel[i].length - 1));
+                return wheel[i][index];
+            }
+        }
+        return wheel[length][0];
+    }
+
+    private void unlink(Timer entry) {
+        Timer prev = entry.getPreviousInVariableOrder();
+        Timer next = entry.getNextInVariableOrder();
+        next.setPreviousInVariableOrder(prev);
+        prev.setNextInVariableOrder(next);
+        entry.setPreviousInVariableOrder(null);
+        entry.setNextInVariableOrder(null);
+    }
+
+    /* The head of a bucket's circular list */
+    private static final class Sentinel implements Timer {
+
+        private Timer prev = this;
+        private Timer next = this;
+
+        public long getVariableTime() {
+            return 0L;
+        }
+
+        public void setVariableTime(long time) {
+        }
+
+        public Timer getPreviousInVariableOrder() {
+            return prev;
+        }
+
+        public void setPreviousInVariableOrder(Timer prev) {
+            this.prev = prev;
+        }
+
+        public Timer getNextInVariableOrder() {
+            return next;
+        }
+
+        public void setNextInVariableOrder(Timer next) {
+            this.next = next;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+
+package com.draagon.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+/**
+ * Test the Cache that stores its entries inline in arrays
+ * 
+ * @see com.draagon.cache.ArrayCache
+ */
+public class ArrayCacheTest
+{
+    @Test
+    public void testPutGetRemove() throws Exception {
+
+        ArrayCache<String,String> c = new ArrayCache<String,String>( false, 60, 60 );
+
+        for (int i = 0; i < 10000; i++) {
+            assertNull( c.put( "key" + i, "value" + i ));
+        }
+        assertEquals( 10000, c.size() );
+        assertEquals( "value500", c.get( "key500" ));
+        assertNull( c.get( "missing" ));
+
+        assertEquals( "value500", c.put( "key500", "replaced" ));
+        assertEquals( "replaced", c.get( "key500" ));
+
+        for (int i = 0; i < 10000; i += 2) {
+            c.remove( "key" + i );
+        }
+        assertEquals( 5000, c.size() );
+        assertFalse( c.containsKey( "key0" ));
+        assertTrue( c.containsKey( "key1" ));
+
+        c.clear();
+        assertTrue( c.isEmpty() );
+        assertNull( c.get( "key1" ));
+    }
+
+    @Test
+    public void testExpires() throws Exception {
+
+        ArrayCache<String,String> c = new ArrayCache<String,String>( true, 60, 1 );
+
+        c.put( "a", "value1" );
+        c.put( "b", "value2" );
+
+        Thread.sleep( 700 );
+        assertEquals( "value2", c.get( "b" ));
+        Thread.sleep( 700 );
+
+        // The read reset the timeout of b
+        c.flush();
+        assertEquals( 1, c.size() );
+        assertNull( c.get( "a" ));
+        assertEquals( "value2", c.get( "b" ));
+    }
+
+    @Test
+    public void testExpiresWithManualTicker() throws Exception {
+
+        ManualTicker ticker = new ManualTicker( 0L );
+        ArrayCache<String,String> c = new ArrayCache<String,String>( true, 60, 1 );
+        c.setTicker( ticker );
+
+        c.put( "a", "value1" );
+        c.put( "b", "value2" );
+
+        ticker.advance( 700L );
+        assertEquals( "value2", c.get( "b" ));
+        ticker.advance( 700L );
+
+        // The read reset the timeout of b
+        c.flush();
+        assertEquals( 1, c.size() );
+        assertNull( c.get( "a" ));
+        assertEquals( "value2", c.get( "b" ));
+    }
+
+    @Test
+    public void testReadsDuringWrites() throws Exception {
+
+        final ArrayCache<Integer,String> c = new ArrayCache<Integer,String>( false, 60, 60 );
+        final AtomicReference<String> failure = new AtomicReference<String>();
+
+        Thread writer = new Thread() {
+            public void run() {
+                // Puts and removes force the tables to be rebuilt while readers probe them
+                for (int i = 0; i < 200000; i++) {
+                    c.put( i, "value" + i );
+                    if (i >= 100)
+                        c.remove( i - 100 );
+                }
+            }
+        };
+        Thread reader = new Thread() {
+            public void run() {
+                for (int n = 0; n < 200000; n++) {
+                    int i = n % 1000;
+                    String v = c.get( i );
+                    if (v != null && !v.equals( "value" + i ))
+                        failure.set( "key " + i + " read " + v );
+                }
+            }
+        };
+
+        writer.start();
+        reader.start();
+        writer.join();
+        reader.join();
+
+        assertNull( failure.get() );
+        assertEquals( 100, c.size() );
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+
+package com.draagon.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+/**
+ * Test the asynchronous caches
+ * 
+ * @see com.draagon.cache.AsyncCache
+ * @see com.draagon.cache.AsyncLoadingCache
+ */
+public class AsyncCacheTest
+{
+    @Test
+    public void testLoadInFlightIsShared() throws Exception {
+
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch( 1 );
+        AsyncLoadingCache<String,String> c = new AsyncLoadingCache<String,String>( true, 60, 60, new CacheLoader<String,String>() {
+            public String load(String key) throws Exception {
+                loads.incrementAndGet();
+                release.await();
+                return "value-" + key;
+            }
+        });
+
+        CompletableFuture<String> f1 = c.get( "a" );
+        CompletableFuture<String> f2 = c.get( "a" );
+        assertSame( f1, f2 );
+
+        release.countDown();
+        assertEquals( "value-a", f1.get( 5, TimeUnit.SECONDS ));
+        assertEquals( "value-a", c.get( "a" ).get() );
+        assertEquals( 1, loads.get() );
+    }
+
+    @Test
+    public void testFailedLoadIsRemoved() throws Exception {
+
+        final AtomicInteger loads = new AtomicInteger();
+        AsyncLoadingCache<String,String> c = new AsyncLoadingCache<String,String>( true, 60, 60, new CacheLoader<String,String>() {
+            public String load(String key) throws Exception {
+                if (loads.incrementAndGet() == 1)
+                    throw new IOException( "database down" );
+                return "value-" + key;
+            }
+        });
+
+        try {
+            c.get( "a" ).get( 5, TimeUnit.SECONDS );
+            fail( "load should have failed" );
+        } catch (ExecutionException e) {
+            assertTrue( e.getCause() instanceof IOException );
+        }
+
+        // The failed future is removed once it completes
+        for (int i = 0; i < 100 && c.getIfPresent( "a" ) != null; i++) {
+            Thread.sleep( 10 );
+        }
+        assertNull( c.getIfPresent( "a" ));
+
+        assertEquals( "value-a", c.get( "a" ).get( 5, TimeUnit.SECONDS ));
+        assertEquals( 1, c.size() );
+    }
+
+    @Test
+    public void testLoadsRunOnExecutor() throws Exception {
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Thread[] loadThread = new Thread[1];
+            AsyncCache<String,String> c = new AsyncCache<String,String>( true, 60, 60, 16, -1L, executor );
+
+            CompletableFuture<String> f = c.get( "a", new CacheLoader<String,String>() {
+                public String load(String key) {
+                    loadThread[0] = Thread.currentThread();
+                    return "value-" + key;
+                }
+            });
+
+            assertEquals( "value-a", f.get( 5, TimeUnit.SECONDS ));
+            assertTrue( loadThread[0] != Thread.currentThread() );
+            assertSame( executor, c.getExecutor() );
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+
+package com.draagon.cache;
+
+import java.util.Random;
+
+/**
+ * Compares the storage engines of the caches for the heap used per entry and
+ * the latency of get(). It is not run with the unit tests, and is started
+ * from the test classpath with:
+ * <pre>
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; com.draagon.cache.CacheBenchmark [entries]
+ * </pre>
+ * The numbers are rough, as they come from timing loops and the heap usage
+ * reported by the runtime rather than a benchmark harness.
+ * 
+ * @author Doug Mealing
+ */
+public class CacheBenchmark
+{
+    private static final int ROUNDS = 5;
+    private static final int GETS = 10000000;
+
+    /* The operations being compared, so both engines run the same loops */
+    private interface Engine {
+        String name();
+        void put(Integer key, String value);
+        String get(Integer key);
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        int entries = (args.length > 0) ? Integer.parseInt( args[0] ) : 1000000;
+
+        Integer[] keys = new Integer[entries];
+        for (int i = 0; i < entries; i++) {
+            keys[i] = i;
+        }
+        String value = "value";
+
+        for (int round = 0; round < 2; round++) {
+            run( false, keys, value );
+            run( true, keys, value );
+        }
+    }
+
+    private static Engine cacheEngine(int entries) {
+        final Cache<Integer,String> c = new Cache<Integer,String>( false, 3600, 3600, entries );
+        return new Engine() {
+            public String name() { return "Cache (ConcurrentHashMap)"; }
+            public void put(Integer key, String value) { c.put( key, value ); }
+            public String get(Integer key) { return c.get( key ); }
+        };
+    }
+
+    private static Engine arrayEngine(int entries) {
+        final ArrayCache<Integer,String> c = new ArrayCache<Integer,String>( false, 3600, 3600, entries );
+        return new Engine() {
+            public String name() { return "ArrayCache (inline arrays)"; }
+            public void put(Integer key, String value) { c.put( key, value ); }
+            public String get(Integer key) { return c.get( key ); }
+        };
+    }
+
+    private static void run(boolean arrays, Integer[] keys, String value) {
+
+        // The keys and value are shared, so only the engine's own structures are counted
+        long before = usedHeap();
+        Engine engine = arrays ? arrayEngine( keys.length ) : cacheEngine( keys.length );
+        for (Integer key : keys) {
+            engine.put( key, value );
+        }
+        long after = usedHeap();
+
+        System.out.println( engine.name() + ": " + ((after - before) / keys.length) + " bytes per entry" );
+
+        Random random = new Random( 42 );
+        int[] order = new int[GETS];
+        for (int i = 0; i < GETS; i++) {
+            order[i] = random.nextInt( keys.length );
+        }
+
+        for (int round = 0; round < ROUNDS; round++) {
+            int hits = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < GETS; i++) {
+                if (engine.get( keys[order[i]] ) != null)
+                    hits++;
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.println( "  get: " + ((double) elapsed / GETS) + " ns/op (" + hits + " hits)" );
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep( 100 );
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+
+package com.draagon.cache;
+
+import java.util.Random;
+
+/**
+ * Measures the cost of registering, sweeping and unregistering caches in the
+ * CacheManager as the number of registered caches grows, to show that each
+ * operation stays close to constant rather than growing with the number of
+ * caches. It is not run with the unit tests, and is started from the test
+ * classpath with:
+ * <pre>
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; com.draagon.cache.CacheManagerBenchmark [caches]
+ * </pre>
+ * The caches are stubs whose flush does nothing and time is moved by a
+ * ManualTicker, so only the scheduling is measured.
+ * 
+ * @author Doug Mealing
+ */
+public class CacheManagerBenchmark
+{
+    /* Number of sweeps timed at each size */
+    private static final int SWEEPS = 1000000;
+
+    public static void main(String[] args) throws Exception {
+
+        int max = (args.length > 0) ? Integer.parseInt( args[0] ) : 100000;
+
+        for (int round = 0; round < 2; round++) {
+            for (int caches = 1000; caches <= max; caches *= 10) {
+                run( caches );
+            }
+        }
+    }
+
+    private static void run(int caches) {
+
+        ManualTicker ticker = new ManualTicker( 0L );
+        CacheManager manager = new CacheManager( ticker, CacheManagerTest.DIRECT );
+
+        // Check intervals spread over a minute, as with caches for many tenants
+        Random random = new Random( 42 );
+        CacheManagerTest.CountingSweepable[] stubs = new CacheManagerTest.CountingSweepable[caches];
+        for (int i = 0; i < caches; i++) {
+            stubs[i] = new CacheManagerTest.CountingSweepable( 1 + random.nextInt( 60 ));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < caches; i++) {
+            manager.registerCache( stubs[i] );
+        }
+        long register = System.nanoTime() - start;
+
+        // Moves time forward a second at a time, rescheduling every cache that is due
+        int swept = 0;
+        start = System.nanoTime();
+        while (swept < SWEEPS) {
+            ticker.advance( 1000 );
+            swept += manager.sweepDue();
+        }
+        long sweep = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < caches; i++) {
+            manager.unregisterCache( stubs[i] );
+        }
+        long unregister = System.nanoTime() - start;
+
+        System.out.println( caches + " caches: register " + (register / caches) + " ns, sweep and reschedule "
+                + (sweep / swept) + " ns, unregister " + (unregister / caches) + " ns" );
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+
+package com.draagon.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * Test the CacheManager's scheduling of the cache sweeps
+ * 
+ * @see com.draagon.cache.CacheManager
+ */
+public class CacheManagerTest
+{
+    /* Flushes the caches on the thread sweeping them */
+    static final Executor DIRECT = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+    
+    /* Counts the number of times it is flushed */
+    static class CountingSweepable implements Sweepable {
+        
+        private final int checkSeconds;
+        volatile int flushes;
+        volatile boolean shutDown;
+        
+        CountingSweepable(int checkSeconds) {
+            this.checkSeconds = checkSeconds;
+        }
+        
+        public int getCheckSeconds() {
+            return checkSeconds;
+        }
+        
+        public int size() {
+            return 1;
+        }
+        
+        public void flush() {
+            flushes++;
+        }
+        
+        public void managerShutdown() {
+            shutDown = true;
+        }
+    }
+    
+    @Test
+    public void testSweepsAgainSoonWhenOutOfBudget() throws Exception {
+        
+        ManualTicker ticker = new ManualTicker();
+        CacheManager manager = new CacheManager( ticker, DIRECT );
+        
+        CountingSweepable sliced = new CountingSweepable( 60 ) {
+            public boolean sweep() {
+                flush();
+                return flushes < 3;
+            }
+        };
+        manager.registerCache( sliced );
+        
+        ticker.advance( 60000 );
+        assertEquals( 1, manager.sweepDue() );
+        ticker.advance( 100 );
+        assertEquals( 1, manager.sweepDue() );
+        ticker.advance( 100 );
+        assertEquals( 1, manager.sweepDue() );
+        assertEquals( 3, sliced.flushes );
+        
+        ticker.advance( 100 );
+        assertEquals( "back to the check interval", 0, manager.sweepDue() );
+        ticker.advance( 60000 );
+        assertEquals( 1, manager.sweepDue() );
+        assertEquals( 4, sliced.flushes );
+    }
+    
+    @Test
+    public void testSweepsInOrderOfCheckSeconds() throws Exception {
+        
+        ManualTicker ticker = new ManualTicker();
+        CacheManager manager = new CacheManager( ticker, DIRECT );
+        
+        CountingSweepable slow = new CountingSweepable( 3 );
+        CountingSweepable fast = new CountingSweepable( 1 );
+        CountingSweepable medium = new CountingSweepable( 2 );
+        assertTrue( manager.registerCache( slow ));
+        assertTrue( manager.registerCache( fast ));
+        assertTrue( manager.registerCache( medium ));
+        assertFalse( "already registered", manager.registerCache( fast ));
+        assertEquals( 3, manager.registeredCount() );
+        
+        assertEquals( 0, manager.sweepDue() );
+        
+        ticker.advance( 1000 );
+        assertEquals( 1, manager.sweepDue() );
+        assertEquals( 1, fast.flushes );
+        
+        ticker.advance( 1000 );
+        assertEquals( 2, manager.sweepDue() );
+        assertEquals( 2, fast.flushes );
+        assertEquals( 1, medium.flushes );
+        
+        manager.unregisterCache( slow );
+        assertEquals( 2, manager.registeredCount() );
+        
+        ticker.advance( 1000 );
+        assertEquals( 1, manager.sweepDue() );
+        assertEquals( 0, slow.flushes );
+        assertEquals( 3, fast.flushes );
+    }
+    
+    @Test
+    public void testUnregisterDuringSweep() throws Exception {
+        
+        ManualTicker ticker = new ManualTicker();
+        final CacheManager manager = new CacheManager( ticker, DIRECT );
+        
+        CountingSweepable c = new CountingSweepable( 1 ) {
+            public void flush() {
+                super.flush();
+                manager.unregisterCache( this );
+            }
+        };
+        manager.registerCache( c );
+        
+        ticker.advance( 1000 );
+        assertEquals( 1, manager.sweepDue() );
+        assertEquals( 0, manager.registeredCount() );
+        
+        ticker.advance( 1000 );
+        assertEquals( 0, manager.sweepDue() );
+        assertEquals( 1, c.flushes );
+    }
+    
+    @Test
+    public void testLargeCacheDoesNotDelayOthers() throws Exception {
+        
+        ManualTicker ticker = new ManualTicker();
+        ForkJoinPool sweepers = new ForkJoinPool( 2 );
+        CacheManager manager = new CacheManager( ticker, sweepers );
+        
+        final CountDownLatch release = new CountDownLatch( 1 );
+        final CountDownLatch rescheduled = new CountDownLatch( 1 );
+        CountingSweepable large = new CountingSweepable( 1 ) {
+            public void flush() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.flush();
+            }
+        };
+        CountingSweepable fast = new CountingSweepable( 1 ) {
+            public int getCheckSeconds() {
+                // Read under the manager's lock while it schedules the next sweep
+                if ( flushes > 0 )
+                    rescheduled.countDown();
+                return super.getCheckSeconds();
+            }
+        };
+        manager.registerCache( large );
+        manager.registerCache( fast );
+        
+        try {
+            ticker.advance( 1000 );
+            assertEquals( 2, manager.sweepDue() );
+            assertTrue( "flushed while the large cache is still flushing", rescheduled.await( 5, TimeUnit.SECONDS ));
+            assertEquals( 0, large.flushes );
+            // Waits on the lock until the fast cache is back in the heap
+            assertEquals( 0, manager.sweepDue() );
+            
+            ticker.advance( 1000 );
+            assertEquals( "not swept again while it is flushing", 1, manager.sweepDue() );
+        } finally {
+            release.countDown();
+            sweepers.shutdown();
+            sweepers.awaitTermination( 5, TimeUnit.SECONDS );
+        }
+        assertEquals( 1, large.flushes );
+        // Also keeps it from being collected, as it is only weakly registered
+        assertEquals( 2, fast.flushes );
+    }
+    
+    @Test
+    public void testThreadReclaimsMemoryWithoutReads() throws Exception {
+        
+        Cache<String,byte[]> c = new Cache<String,byte[]>( false, 1, 1 );
+        byte[] value = new byte[ 1024 * 1024 ];
+        WeakReference<byte[]> ref = new WeakReference<byte[]>( value );
+        c.put( "large", value );
+        value = null;
+        for ( int i = 0; i < 1000; i++ )
+            c.put( "key" + i, new byte[ 1024 ] );
+        
+        long deadline = System.currentTimeMillis() + 10000L;
+        while ( c.size() > 0 && System.currentTimeMillis() < deadline )
+            Thread.sleep( 50 );
+        assertEquals( "swept by the CacheManager thread", 0, c.size() );
+        
+        while ( ref.get() != null && System.currentTimeMillis() < deadline ) {
+            System.gc();
+            Thread.sleep( 50 );
+        }
+        assertTrue( "the value is no longer held", ref.get() == null );
+    }
+    
+    @Test
+    public void testShutdownStopsTheThread() throws Exception {
+        
+        ForkJoinPool sweepers = new ForkJoinPool( 1 );
+        CacheManager manager = new CacheManager( Ticker.systemTicker(), sweepers, true );
+        
+        final CountDownLatch flushed = new CountDownLatch( 1 );
+        CountingSweepable cache = new CountingSweepable( 1 ) {
+            public void flush() {
+                super.flush();
+                flushed.countDown();
+            }
+        };
+        manager.registerCache( cache );
+        assertTrue( "started by the registration", flushed.await( 5, TimeUnit.SECONDS ));
+        
+        manager.shutdown();
+        assertTrue( manager.isShutdown() );
+        assertTrue( manager.awaitTermination( 5, TimeUnit.SECONDS ));
+        assertTrue( sweepers.isTerminated() );
+        assertTrue( "told it has to register again", cache.shutDown );
+        assertFalse( manager.registerCache( cache ));
+        
+        int flushes = cache.flushes;
+        Thread.sleep( 1500 );
+        assertEquals( "no longer swept", flushes, cache.flushes );
+    }
+    
+    @Test
+    public void testThreadRestartsAfterError() throws Exception {
+        
+        CacheManager manager = new CacheManager( Ticker.systemTicker(), DIRECT, true );
+        
+        final CountDownLatch recovered = new CountDownLatch( 1 );
+        CountingSweepable failing = new CountingSweepable( 1 ) {
+            public void flush() {
+                super.flush();
+                if ( flushes == 1 )
+                    throw new Error( "Expected by the test" );
+                recovered.countDown();
+            }
+        };
+        
+        try {
+            manager.registerCache( failing );
+            assertTrue( "swept by a new thread", recovered.await( 5, TimeUnit.SECONDS ));
+        } finally {
+            manager.shutdown();
+        }
+        assertTrue( manager.awaitTermination( 5, TimeUnit.SECONDS ));
+        assertTrue( failing.flushes >= 2 );
+    }
+    
+    @Test
+    public void testCollectedCachesAreDropped() throws Exception {
+        
+        ManualTicker ticker = new ManualTicker();
+        CacheManager manager = new CacheManager( ticker, DIRECT );
+        
+        CountingSweepable kept = new CountingSweepable( 1 );
+        CountingSweepable dropped = new CountingSweepable( 1 );
+        WeakReference<CountingSweepable> ref = new WeakReference<CountingSweepable>( dropped );
+        assertTrue( manager.registerCache( kept ));
+        assertTrue( manager.registerCache( dropped ));
+        assertFalse( "already registered", manager.registerCache( dropped ));
+        assertEquals( 2, manager.registeredCount() );
+        dropped = null;
+        
+        long deadline = System.currentTimeMillis() + 10000L;
+        while ( manager.registeredCount() > 1 && System.currentTimeMillis() < deadline ) {
+            System.gc();
+            Thread.sleep( 50 );
+        }
+        assertTrue( "not held by the manager", ref.get() == null );
+        assertEquals( 1, manager.registeredCount() );
+        
+        ticker.advance( 1000 );
+        assertEquals( 1, manager.sweepDue() );
+        assertEquals( 1, kept.flushes );
+    }
+    
+    @Test
+    public void testAbandonedCacheIsCollectedWithItsEntries() throws Exception {
+        
+        Cache<String,byte[]> c = new Cache<String,byte[]>( false, 60, 60 );
+        for ( int i = 0; i < 100; i++ )
+            c.put( "key" + i, new byte[ 1024 ] );
+        WeakReference<Cache<String,byte[]>> ref = new WeakReference<Cache<String,byte[]>>( c );
+        c = null;
+        
+        long deadline = System.currentTimeMillis() + 10000L;
+        while ( ref.get() != null && System.currentTimeMillis() < deadline ) {
+            System.gc();
+            Thread.sleep( 50 );
+        }
+        assertTrue( "collected before its entries expired", ref.get() == null );
+    }
+    
+    @Test
+    public void testCachesRegisterAgainAfterShutdown() throws Exception {
+        
+        Cache<String,String> c = new Cache<String,String>( false, 1, 1 );
+        c.put( "key", "value" );
+        
+        CacheManager first = CacheManager.getInstance();
+        first.shutdown();
+        assertTrue( first.awaitTermination( 5, TimeUnit.SECONDS ));
+        
+        // Only updated, so the cache registers again without adding an item
+        c.put( "key", "updated" );
+        assertEquals( 1, c.size() );
+        CacheManager second = CacheManager.getInstance();
+        assertTrue( "replaced by a new manager", second != first );
+        assertFalse( "already registered with it", second.registerCache( c.sweepable ));
+        
+        long deadline = System.currentTimeMillis() + 10000L;
+        while ( c.size() > 0 && System.currentTimeMillis() < deadline )
+            Thread.sleep( 50 );
+        assertEquals( "swept by the new manager", 0, c.size() );
+    }
+}
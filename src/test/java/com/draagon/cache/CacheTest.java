@@ -8,9 +8,25 @@
 package com.draagon.cache;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.junit.Ignore;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 /**
  * Test the Expiring Cache
@@ -19,20 +35,629 @@ import org.junit.Test;
  */
 public class CacheTest
 {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void testCacheExpires() throws Exception {
         
+        ManualTicker ticker = new ManualTicker();
         Cache<String,String> c = new Cache<String,String>( true, 1, 1 );
+        c.setTicker( ticker );
         
         c.put( "key", "value" );
         assertEquals( "value", c.get("key"));
         
-        // Wait 2 seconds
-        Thread.sleep( 2000 );
+        ticker.advance( 900 );
+        assertEquals( "read resets the timeout", "value", c.get("key"));
         
+        ticker.advance( 1100 );
         assertNull( "value no longer exists", c.get("key"));
     }
     
+    @Test
+    public void testCacheFlushWithManualTicker() throws Exception {
+        
+        ManualTicker ticker = new ManualTicker( 0L );
+        Cache<String,String> c = new Cache<String,String>( false, 1, 1 );
+        c.setTicker( ticker );
+        
+        c.put( "key1", "value1" );
+        c.put( "key2", "value2", Duration.ofSeconds( 5 ));
+        
+        ticker.advance( Duration.ofSeconds( 2 ));
+        c.flush();
+        assertEquals( 1, c.size() );
+        assertEquals( "value2", c.get( "key2" ));
+        
+        ticker.advance( Duration.ofSeconds( 4 ));
+        c.flush();
+        assertEquals( 0, c.size() );
+    }
+    
+    @Test
+    public void testCacheSweepsWithinBudget() throws Exception {
+        
+        ManualTicker ticker = new ManualTicker( 0L );
+        Cache<String,String> c = new Cache<String,String>( false, 1, 1 );
+        c.setTicker( ticker );
+        c.setSweepBudget( 30, Duration.ofSeconds( 10 ));
+        
+        for ( int i = 0; i < 100; i++ )
+            c.put( "key" + i, "value" + i );
+        for ( int i = 0; i < 50; i++ )
+            c.put( "var" + i, "value" + i, Duration.ofSeconds( 5 ));
+        
+        ticker.advance( Duration.ofSeconds( 2 ));
+        assertTrue( c.sweep() );
+        assertEquals( "stopped after 30 entries", 120, c.size() );
+        assertTrue( c.sweep() );
+        assertTrue( c.sweep() );
+        assertEquals( 60, c.size() );
+        assertFalse( "the last 10 are within budget", c.sweep() );
+        assertEquals( 50, c.size() );
+        
+        ticker.advance( Duration.ofSeconds( 4 ));
+        assertTrue( c.sweep() );
+        assertEquals( "stopped on the timer wheel", 20, c.size() );
+        assertFalse( "resumes on the timer wheel", c.sweep() );
+        assertEquals( 0, c.size() );
+    }
+    
+    @Test
+    public void testCacheFlushIgnoresSweepBudget() throws Exception {
+        
+        ManualTicker ticker = new ManualTicker( 0L );
+        Cache<String,String> c = new Cache<String,String>( false, 1, 1 );
+        c.setTicker( ticker );
+        c.setSweepBudget( 10, Duration.ofSeconds( 10 ));
+        
+        for ( int i = 0; i < 100; i++ )
+            c.put( "key" + i, "value" + i, Duration.ofSeconds( i % 2 == 0 ? 1 : 5 ));
+        
+        ticker.advance( Duration.ofSeconds( 6 ));
+        c.flush();
+        assertEquals( 0, c.size() );
+    }
+    
+    @Test
+    public void testCacheSampledExpiry() throws Exception {
+        
+        ManualTicker ticker = new ManualTicker( 0L );
+        Cache<String,String> c = new Cache<String,String>( false, 1, 1 );
+        c.setTicker( ticker );
+        c.setSampledExpiry( 20, 0.25d );
+        assertTrue( c.isSampledExpiry() );
+        
+        for ( int i = 0; i < 900; i++ )
+            c.put( "key" + i, "value" + i );
+        for ( int i = 0; i < 100; i++ )
+            c.put( "live" + i, "value" + i, Duration.ofSeconds( 60 ));
+        
+        ticker.advance( Duration.ofSeconds( 2 ));
+        c.flush();
+        assertEquals( "samples while most have expired", 100, c.size() );
+        assertEquals( "value5", c.get( "live5" ));
+        
+        c.put( "short", "value", Duration.ofSeconds( 1 ));
+        ticker.advance( Duration.ofSeconds( 2 ));
+        c.flush();
+        assertNull( "never returned once expired", c.get( "short" ));
+        assertEquals( 100, c.size() );
+    }
+    
+    @Test
+    public void testCacheSampledExpiryRestoreHoldsNothingElse() throws Exception {
+        
+        Serializer<String> strings = new Serializer<String>() {
+            public byte[] serialize(String s) {
+                return s.getBytes( StandardCharsets.UTF_8 );
+            }
+            public String deserialize(byte[] bytes) {
+                return new String( bytes, StandardCharsets.UTF_8 );
+            }
+        };
+        
+        Cache<String,String> c = new Cache<String,String>( false, 60, 60 );
+        c.put( "key", "value" );
+        Path file = folder.getRoot().toPath().resolve( "sampled.snapshot" );
+        c.snapshot( file, strings, strings );
+        
+        Cache<String,String> r = new Cache<String,String>( false, 60, 60 );
+        r.setSampledExpiry( 20, 0.25d );
+        assertEquals( 1, r.restore( file, strings, strings ));
+        
+        WeakReference<String> ref = new WeakReference<String>( r.get( "key" ));
+        assertEquals( "value", r.remove( "key" ));
+        
+        long deadline = System.currentTimeMillis() + 10000L;
+        while ( ref.get() != null && System.currentTimeMillis() < deadline ) {
+            System.gc();
+            Thread.sleep( 50 );
+        }
+        assertNull( "not left on the timer wheel", ref.get() );
+    }
+    
+    @Test
+    public void testCacheSampledExpiryOnlySetWhileEmptyAndUnbounded() throws Exception {
+        
+        Cache<String,String> bounded = new Cache<String,String>( false, 1, 1, 1, 10 );
+        try {
+            bounded.setSampledExpiry( 20, 0.25d );
+            fail( "A bounded cache orders its entries anyway" );
+        } catch ( IllegalStateException e ) {
+            // Expected
+        }
+        
+        Cache<String,String> c = new Cache<String,String>( false, 1, 1 );
+        c.put( "key", "value" );
+        try {
+            c.setSampledExpiry( 20, 0.25d );
+            fail( "The cache is not empty" );
+        } catch ( IllegalStateException e ) {
+            // Expected
+        }
+        assertFalse( c.isSampledExpiry() );
+    }
+    
+    @Test
+    public void testCacheAmortizedMaintenance() throws Exception {
+        
+        ManualTicker ticker = new ManualTicker( 0L );
+        Cache<String,String> c = new Cache<String,String>( false, 1, 1 );
+        c.setTicker( ticker );
+        c.setSweepBudget( 30, Duration.ofSeconds( 10 ));
+        c.setAmortizedMaintenance( true );
+        assertTrue( c.isAmortizedMaintenance() );
+        
+        for ( int i = 0; i < 100; i++ )
+            c.put( "key" + i, "value" + i );
+        
+        ticker.advance( 500 );
+        assertNull( c.get( "missing" ));
+        assertEquals( "not due yet", 100, c.size() );
+        
+        ticker.advance( 1500 );
+        assertNull( c.get( "missing" ));
+        assertEquals( "one batch", 70, c.size() );
+        c.put( "new", "value" );
+        assertEquals( "carried on by the next call", 41, c.size() );
+        assertNull( c.get( "missing" ));
+        assertNull( c.get( "missing" ));
+        assertEquals( 1, c.size() );
+        assertEquals( "value", c.get( "new" ));
+    }
+    
+    @Test
+    public void testCacheReadRemovesExpired() throws Exception {
+        
+        ManualTicker ticker = new ManualTicker();
+        Cache<String,String> c = new Cache<String,String>( false, 60, 1 );
+        c.setTicker( ticker );
+        
+        c.put( "key", "value" );
+        ticker.advance( 1001 );
+        assertNull( c.get( "key" ));
+        assertEquals( "removed by the read", 0, c.size() );
+        
+        c.put( "key", "value" );
+        assertEquals( "value", c.get( "key" ));
+        assertEquals( 1, c.size() );
+    }
+    
+    @Test
+    public void testCachePutUpdatesInPlace() throws Exception {
+        
+        ManualTicker ticker = new ManualTicker();
+        Cache<String,String> c = new Cache<String,String>( false, 60, 1 );
+        c.setTicker( ticker );
+        
+        c.put( "updated", "value1" );
+        c.put( "unchanged", "value2" );
+        Cache<String,String>.CacheEntry entry = c.getEntry( "updated" );
+        
+        ticker.advance( 600 );
+        assertEquals( "value1", c.put( "updated", "value3" ));
+        assertTrue( "same entry", entry == c.getEntry( "updated" ));
+        assertEquals( "value3", entry.getValue() );
+        
+        ticker.advance( 600 );
+        c.flush();
+        assertEquals( "update renewed the timeout", 1, c.size() );
+        assertEquals( "value3", c.get( "updated" ));
+        
+        ticker.advance( 600 );
+        c.flush();
+        assertEquals( 0, c.size() );
+        
+        c.put( "updated", "value4" );
+        assertTrue( "expired entry is not reused", entry != c.getEntry( "updated" ));
+    }
+    
+    @Test
+    public void testCacheUpdatedEntryDoesNotHoldBackExpiry() throws Exception {
+        
+        ManualTicker ticker = new ManualTicker();
+        Cache<String,String> c = new Cache<String,String>( false, 60, 1 );
+        c.setTicker( ticker );
+        
+        c.put( "updated", "value1" );
+        ticker.advance( 100 );
+        c.put( "other", "value2" );
+        
+        // Updated while still queued ahead of the other item
+        ticker.advance( 500 );
+        c.put( "updated", "value3" );
+        
+        ticker.advance( 600 );
+        c.flush();
+        assertEquals( 1, c.size() );
+        assertEquals( "value3", c.get( "updated" ));
+        
+        ticker.advance( 500 );
+        c.flush();
+        assertEquals( 0, c.size() );
+    }
+    
+    @Test
+    public void testCacheConcurrentUpdates() throws Exception {
+        
+        final Cache<Integer,Integer> c = new Cache<Integer,Integer>( true, 60, 60, 16, 1000 );
+        
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            final int base = t * 10;
+            writers[t] = new Thread() {
+                public void run() {
+                    for (int n = 0; n < 5000; n++) {
+                        c.put( base + n % 10, n );
+                        if (n % 100 == 0) c.flush();
+                    }
+                }
+            };
+            writers[t].start();
+        }
+        for (Thread t : writers) {
+            t.join();
+        }
+        
+        c.flush();
+        assertEquals( 40, c.size() );
+        for (int k = 0; k < 40; k++) {
+            assertEquals( Integer.valueOf( 4990 + k % 10 ), c.get( k ));
+        }
+    }
+    
+    @Test
+    public void testCacheConcurrentPutAndReplace() throws Exception {
+        
+        final Cache<String,Object> c = new Cache<String,Object>( false, 60, 60 );
+        c.put( "key", new Object() );
+        
+        // Each value may only be taken out once, by the put that overwrote it
+        // or the replace or remove that expected it
+        final Map<Object,Boolean> taken = new ConcurrentHashMap<Object,Boolean>();
+        final AtomicBoolean twice = new AtomicBoolean();
+        
+        Thread putter = new Thread() {
+            public void run() {
+                for (int n = 0; n < 500000 && !twice.get(); n++) {
+                    Object prior = c.put( "key", new Object() );
+                    if (prior != null && taken.put( prior, Boolean.TRUE ) != null)
+                        twice.set( true );
+                }
+            }
+        };
+        Thread replacer = new Thread() {
+            public void run() {
+                for (int n = 0; n < 500000 && !twice.get(); n++) {
+                    Object current = c.get( "key" );
+                    boolean done = (n % 10 == 0)
+                            ? c.remove( "key", current )
+                            : c.replace( "key", current, new Object() );
+                    if (done && taken.put( current, Boolean.TRUE ) != null)
+                        twice.set( true );
+                }
+            }
+        };
+        putter.start();
+        replacer.start();
+        putter.join();
+        replacer.join();
+        
+        assertFalse( "a put was overwritten by a replace or remove", twice.get() );
+    }
+    
+    @Test
+    public void testCacheEntryCompareAndSetValue() throws Exception {
+        
+        final Cache<String,Integer> c = new Cache<String,Integer>( false, 60, 60 );
+        c.put( "count", 0 );
+        
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            writers[t] = new Thread() {
+                public void run() {
+                    Cache<String,Integer>.CacheEntry entry = c.getEntry( "count" );
+                    for (int n = 0; n < 1000; n++) {
+                        for (;;) {
+                            Integer v = entry.getValue();
+                            if (entry.compareAndSetValue( v, v + 1 ))
+                                break;
+                        }
+                    }
+                }
+            };
+            writers[t].start();
+        }
+        for (Thread t : writers) {
+            t.join();
+        }
+        
+        assertEquals( Integer.valueOf( 4000 ), c.get( "count" ));
+        assertEquals( Integer.valueOf( 4000 ), c.getEntry( "count" ).setValue( 0 ));
+        assertEquals( Integer.valueOf( 0 ), c.get( "count" ));
+    }
+    
+    @Test
+    public void testCacheFlushRemovesManyInParallel() throws Exception {
+        
+        ManualTicker ticker = new ManualTicker();
+        Cache<Integer,String> c = new Cache<Integer,String>( false, 60, 1, 50000 );
+        c.setTicker( ticker );
+        
+        for (int i = 0; i < 40000; i++) {
+            c.put( i, "value" + i );
+        }
+        ticker.advance( 500 );
+        c.put( -1, "live" );
+        
+        ticker.advance( 600 );
+        c.flush();
+        assertEquals( 1, c.size() );
+        assertEquals( "live", c.get( -1 ));
+    }
+    
+    @Test( expected = IllegalStateException.class )
+    public void testCacheTickerOnlySetWhileEmpty() throws Exception {
+        
+        Cache<String,String> c = new Cache<String,String>( false, 1, 1 );
+        c.put( "key", "value" );
+        c.setTicker( new ManualTicker() );
+    }
+    
+    @Test
+    public void testCacheFlushRemovesExpired() throws Exception {
+        
+        Cache<String,String> c = new Cache<String,String>( false, 1, 1 );
+        
+        c.put( "key1", "value1" );
+        c.put( "key2", "value2" );
+        c.flush();
+        assertEquals( 2, c.size() );
+        
+        // Wait 2 seconds
+        Thread.sleep( 2100 );
+        
+        c.put( "key3", "value3" );
+        c.flush();
+        assertEquals( "expired items removed without a read", 1, c.size() );
+        assertEquals( "value3", c.get( "key3" ));
+    }
+
+    @Test
+    public void testCacheFlushKeepsReadItems() throws Exception {
+        
+        Cache<String,String> c = new Cache<String,String>( true, 1, 2 );
+        
+        c.put( "read", "value1" );
+        c.put( "unread", "value2" );
+        
+        Thread.sleep( 1200 );
+        assertEquals( "value1", c.get( "read" ));
+        Thread.sleep( 1200 );
+        
+        c.flush();
+        assertEquals( 1, c.size() );
+        assertEquals( "value1", c.get( "read" ));
+    }
+
+    @Test
+    public void testCacheConcurrentReads() throws Exception {
+        
+        final Cache<Integer,String> c = new Cache<Integer,String>( true, 1, 60, 16, 100 );
+        for (int i = 0; i < 200; i++) {
+            c.put( i, "value" + i );
+        }
+
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread() {
+                public void run() {
+                    for (int n = 0; n < 10000; n++) {
+                        c.get( n % 200 );
+                    }
+                }
+            };
+            readers[t].start();
+        }
+        for (Thread t : readers) {
+            t.join();
+        }
+
+        c.put( 1000, "value" );
+        c.flush();
+        assertEquals( 100, c.size() );
+    }
+
+    @Test
+    public void testCacheTimeToLive() throws Exception {
+        
+        Cache<String,String> c = new Cache<String,String>( false, 1, 60 );
+        
+        c.put( "short", "value1", Duration.ofMillis( 300 ));
+        c.put( "long", "value2" );
+        assertEquals( "value1", c.get( "short" ));
+        
+        Thread.sleep( 1200 );
+        
+        c.flush();
+        assertEquals( 1, c.size() );
+        assertNull( c.get( "short" ));
+        assertEquals( "value2", c.get( "long" ));
+    }
+
+    @Test
+    public void testCacheExpiry() throws Exception {
+        
+        Cache<String,String> c = new Cache<String,String>( 1, new Expiry<String,String>() {
+            public long expireAfterCreate(String key, String value, long currentTime) {
+                return key.startsWith( "short" ) ? 300L : 60000L;
+            }
+            public long expireAfterRead(String key, String value, long currentTime, long currentDuration) {
+                return key.equals( "short-read" ) ? 60000L : currentDuration;
+            }
+        });
+        
+        c.put( "short", "value1" );
+        c.put( "short-read", "value2" );
+        c.put( "long", "value3" );
+        assertEquals( "value2", c.get( "short-read" ));
+        
+        Thread.sleep( 1200 );
+        
+        c.flush();
+        assertEquals( 2, c.size() );
+        assertNull( c.get( "short" ));
+        assertEquals( "value2", c.get( "short-read" ));
+        assertEquals( "value3", c.get( "long" ));
+    }
+
+    @Test
+    public void testCacheExpiryNeverExpires() throws Exception {
+        
+        ManualTicker ticker = new ManualTicker( 1000L );
+        Cache<String,String> c = new Cache<String,String>( 1, new Expiry<String,String>() {
+            public long expireAfterCreate(String key, String value, long currentTime) {
+                return Long.MAX_VALUE;
+            }
+        });
+        c.setTicker( ticker );
+        
+        c.put( "forever", "value1" );
+        c.put( "huge", "value2", Duration.ofSeconds( Long.MAX_VALUE ));
+        assertEquals( "value1", c.get( "forever" ));
+        assertEquals( "value2", c.get( "huge" ));
+        
+        ticker.advance( Duration.ofDays( 365 ));
+        c.flush();
+        assertEquals( 2, c.size() );
+        assertEquals( "value1", c.get( "forever" ));
+        assertEquals( "value2", c.get( "huge" ));
+    }
+
+    @Test
+    public void testCacheMaximumSize() throws Exception {
+
+        Cache<Integer,String> c = new Cache<Integer,String>( true, 60, 60, 16, 100 );
+        
+        for (int i = 0; i < 1000; i++) {
+            c.put( i, "value" + i );
+            assertTrue( "size bounded", c.size() <= 100 );
+        }
+        assertEquals( 100, c.size() );
+    }
+
+    @Test
+    public void testCacheBulkOperations() throws Exception {
+
+        Cache<Integer,String> c = new Cache<Integer,String>( true, 60, 60, 16, 100 );
+
+        Map<Integer,String> m = new HashMap<Integer,String>();
+        for (int i = 0; i < 200; i++) {
+            m.put( i, "value" + i );
+        }
+        c.putAll( m );
+        assertEquals( 100, c.size() );
+
+        c.invalidateAll( c.keySet() );
+        assertTrue( c.isEmpty() );
+
+        m.clear();
+        m.put( 1, "value1" );
+        m.put( 2, "value2" );
+        c.putAll( m );
+
+        Map<Integer,String> present = c.getAllPresent( Arrays.asList( 2, 3, 1 ));
+        assertEquals( Arrays.asList( 2, 1 ), Arrays.asList( present.keySet().toArray() ));
+        assertEquals( "value1", present.get( 1 ));
+
+        c.invalidateAll( Arrays.asList( 1, 3 ));
+        assertNull( c.get( 1 ));
+        assertEquals( 1, c.size() );
+    }
+
+    @Test
+    public void testCacheSnapshotAndRestore() throws Exception {
+
+        Serializer<String> strings = new Serializer<String>() {
+            public byte[] serialize(String s) {
+                return s.getBytes( StandardCharsets.UTF_8 );
+            }
+            public String deserialize(byte[] bytes) {
+                return new String( bytes, StandardCharsets.UTF_8 );
+            }
+        };
+
+        Cache<String,String> c = new Cache<String,String>( false, 60, 60 );
+        for (int i = 0; i < 5000; i++) {
+            c.put( "key" + i, "value" + i );
+        }
+        c.put( "short", "gone", Duration.ofMillis( 100 ));
+
+        Path file = folder.getRoot().toPath().resolve( "cache.snapshot" );
+        assertEquals( 5001, c.snapshot( file, strings, strings ));
+        assertEquals( 5001, Cache.snapshotSize( file ));
+
+        Thread.sleep( 200 );
+
+        Cache<String,String> r = new Cache<String,String>( false, 60, 60, (int) Cache.snapshotSize( file ));
+        r.put( "key1", "newer" );
+
+        // The expired item is skipped and the newer value is kept
+        assertEquals( 4999, r.restore( file, strings, strings ));
+        assertEquals( 5000, r.size() );
+        assertEquals( "value4999", r.get( "key4999" ));
+        assertEquals( "newer", r.get( "key1" ));
+        assertNull( r.get( "short" ));
+    }
+
+    @Test
+    public void testCacheKeepsFrequentOnScan() throws Exception {
+
+        Cache<Integer,String> c = new Cache<Integer,String>( true, 60, 60, 16, 100 );
+
+        // Make the first 10 keys popular
+        for (int i = 0; i < 10; i++) {
+            c.put( i, "hot" + i );
+        }
+        for (int n = 0; n < 20; n++) {
+            for (int i = 0; i < 10; i++) {
+                assertNotNull( c.get( i ));
+            }
+        }
+
+        // Scan through keys that are only used once
+        for (int i = 1000; i < 1500; i++) {
+            c.put( i, "cold" + i );
+        }
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals( "hot" + i, c.get( i ));
+        }
+        assertEquals( 100, c.size() );
+    }
+
     @Test
     @Ignore("From main method, needs asserts")
     public void testCache() throws Exception {
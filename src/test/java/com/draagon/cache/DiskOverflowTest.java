@@ -0,0 +1,119 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+
+package com.draagon.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test the disk tier of a bounded Cache
+ * 
+ * @see com.draagon.cache.DiskOverflow
+ */
+public class DiskOverflowTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testEvictedItemsOverflowToDisk() throws Exception {
+
+        Cache<Integer,String> c = new Cache<Integer,String>( false, 60, 60, 16, 10 );
+        DiskOverflow<Integer,String> disk = new DiskOverflow<Integer,String>( folder.getRoot().toPath(), 256,
+                new JavaSerializer<String>() );
+        c.setOverflow( disk );
+
+        for (int i = 0; i < 100; i++) {
+            c.put( i, "value" + i );
+        }
+        assertEquals( 10, c.size() );
+        assertEquals( 90, disk.size() );
+        assertTrue( "several segments", disk.getSegmentCount() > 1 );
+
+        // Every item is still found, moving between the tiers as it is read
+        for (int i = 0; i < 100; i++) {
+            assertEquals( "value" + i, c.get( i ));
+        }
+        assertEquals( 100, c.size() + disk.size() );
+
+        // A new value replaces the one on disk
+        c.put( 0, "new" );
+        assertEquals( "new", c.get( 0 ));
+
+        c.remove( 1 );
+        assertNull( c.get( 1 ));
+
+        c.clear();
+        assertEquals( 0, disk.size() );
+        assertEquals( 0, disk.getSegmentCount() );
+        disk.close();
+    }
+
+    @Test
+    public void testExpiredSegmentsAreReclaimed() throws Exception {
+
+        Cache<Integer,String> c = new Cache<Integer,String>( false, 60, 60, 16, 1 );
+        DiskOverflow<Integer,String> disk = new DiskOverflow<Integer,String>( folder.getRoot().toPath(), 256,
+                new JavaSerializer<String>() );
+        c.setOverflow( disk );
+
+        for (int i = 0; i < 100; i++) {
+            c.put( i, "value" + i, Duration.ofMillis( 200 ));
+        }
+        assertTrue( "several segments", disk.getSegmentCount() > 1 );
+
+        Thread.sleep( 300 );
+        c.flush();
+
+        assertEquals( 0, disk.size() );
+        assertEquals( 0, disk.getSegmentCount() );
+        assertEquals( 0, folder.getRoot().list().length );
+        assertNull( c.get( 5 ));
+        disk.close();
+    }
+
+    @Test
+    public void testReadsRacingSegmentDeletion() throws Exception {
+
+        final DiskOverflow<Integer,String> disk = new DiskOverflow<Integer,String>( folder.getRoot().toPath(), 256,
+                new JavaSerializer<String>() );
+
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < 100; i++) {
+                disk.spill( i, "value" + i, Long.MAX_VALUE, Long.MAX_VALUE, 0L );
+            }
+
+            final String[] results = new String[100];
+            Thread reader = new Thread() {
+                public void run() {
+                    for (int i = 0; i < results.length; i++) {
+                        DiskOverflow.Spilled<String> item = disk.take( i, 0L );
+                        results[i] = (item == null) ? null : item.value;
+                    }
+                }
+            };
+            reader.start();
+            disk.clear();
+            reader.join();
+
+            // A read either finished before its segment was unmapped or found it deleted
+            for (int i = 0; i < results.length; i++) {
+                assertTrue( results[i] == null || results[i].equals( "value" + i ));
+            }
+            assertEquals( 0, disk.getSegmentCount() );
+        }
+        assertEquals( 0, folder.getRoot().list().length );
+        disk.close();
+    }
+}
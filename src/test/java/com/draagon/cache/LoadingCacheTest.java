@@ -0,0 +1,200 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+
+package com.draagon.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+/**
+ * Test the self-populating LoadingCache
+ * 
+ * @see com.draagon.cache.LoadingCache
+ */
+public class LoadingCacheTest
+{
+    @Test
+    public void testLoadsMissingItems() throws Exception {
+
+        final AtomicInteger loads = new AtomicInteger();
+        LoadingCache<String,String> c = new LoadingCache<String,String>( true, 60, 60, new CacheLoader<String,String>() {
+            public String load(String key) {
+                loads.incrementAndGet();
+                return key.equals( "missing" ) ? null : "value-" + key;
+            }
+        });
+
+        assertEquals( "value-a", c.get( "a" ));
+        assertEquals( "value-a", c.get( "a" ));
+        assertEquals( 1, loads.get() );
+
+        assertNull( c.get( "missing" ));
+        assertNull( c.getIfPresent( "b" ));
+        assertEquals( 1, c.size() );
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneLoad() throws Exception {
+
+        final AtomicInteger loads = new AtomicInteger();
+        final LoadingCache<String,String> c = new LoadingCache<String,String>( true, 60, 60, new CacheLoader<String,String>() {
+            public String load(String key) throws Exception {
+                loads.incrementAndGet();
+                Thread.sleep( 200 );
+                return "value-" + key;
+            }
+        });
+
+        final CountDownLatch start = new CountDownLatch( 1 );
+        final String[] results = new String[8];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        results[n] = c.get( "hot" );
+                    } catch (InterruptedException e) {
+                        // Leaves the result empty
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals( 1, loads.get() );
+        for (String r : results) {
+            assertEquals( "value-hot", r );
+        }
+    }
+
+    @Test
+    public void testLoaderFailureIsNotCached() throws Exception {
+
+        final AtomicInteger loads = new AtomicInteger();
+        LoadingCache<String,String> c = new LoadingCache<String,String>( true, 60, 60, new CacheLoader<String,String>() {
+            public String load(String key) throws Exception {
+                if (loads.incrementAndGet() == 1)
+                    throw new IOException( "database down" );
+                return "value-" + key;
+            }
+        });
+
+        try {
+            c.get( "a" );
+            fail( "load should have failed" );
+        } catch (CacheLoaderException e) {
+            assertSame( IOException.class, e.getCause().getClass() );
+        }
+
+        assertEquals( "value-a", c.get( "a" ));
+        assertEquals( 2, loads.get() );
+    }
+
+    @Test
+    public void testRefreshAfterWrite() throws Exception {
+
+        final AtomicInteger loads = new AtomicInteger();
+        LoadingCache<String,String> c = new LoadingCache<String,String>( true, 60, 60, new CacheLoader<String,String>() {
+            public String load(String key) {
+                return key + "-" + loads.incrementAndGet();
+            }
+        });
+        c.setRefreshAfterWrite( Duration.ofMillis( 200 ));
+        c.setRefreshExecutor( new Executor() {
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+
+        assertEquals( "a-1", c.get( "a" ));
+        assertEquals( "a-1", c.get( "a" ));
+
+        Thread.sleep( 300 );
+
+        // The stale value is returned while the refresh replaces it
+        assertEquals( "a-1", c.get( "a" ));
+        assertEquals( "a-2", c.get( "a" ));
+        assertEquals( 2, loads.get() );
+    }
+
+    @Test
+    public void testGetAllRefreshesAfterWrite() throws Exception {
+
+        final AtomicInteger loads = new AtomicInteger();
+        LoadingCache<String,String> c = new LoadingCache<String,String>( true, 60, 60, new CacheLoader<String,String>() {
+            public String load(String key) {
+                return key + "-" + loads.incrementAndGet();
+            }
+        });
+        ManualTicker ticker = new ManualTicker( 0L );
+        c.setTicker( ticker );
+        c.setRefreshAfterWrite( Duration.ofSeconds( 10 ));
+        c.setRefreshExecutor( new Executor() {
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+
+        assertEquals( "a-1", c.get( "a" ));
+        ticker.advance( Duration.ofSeconds( 11 ));
+
+        // The stale value is returned while the refresh replaces it
+        assertEquals( "a-1", c.getAll( Arrays.asList( "a" )).get( "a" ));
+        assertEquals( "a-2", c.getAll( Arrays.asList( "a" )).get( "a" ));
+        assertEquals( 2, loads.get() );
+    }
+
+    @Test
+    public void testGetAllLoadsMissingInOneCall() throws Exception {
+
+        final AtomicInteger loads = new AtomicInteger();
+        LoadingCache<String,String> c = new LoadingCache<String,String>( true, 60, 60, new CacheLoader<String,String>() {
+            public String load(String key) {
+                throw new UnsupportedOperationException();
+            }
+            public Map<String,String> loadAll(Set<? extends String> keys) {
+                loads.incrementAndGet();
+                Map<String,String> values = new HashMap<String,String>();
+                for (String key : keys) {
+                    if (!key.equals( "missing" ))
+                        values.put( key, "value-" + key );
+                }
+                return values;
+            }
+        });
+        c.put( "a", "cached-a" );
+
+        Map<String,String> values = c.getAll( Arrays.asList( "c", "a", "missing", "b" ));
+        assertEquals( Arrays.asList( "c", "a", "b" ), Arrays.asList( values.keySet().toArray() ));
+        assertEquals( "cached-a", values.get( "a" ));
+        assertEquals( "value-b", values.get( "b" ));
+        assertEquals( 1, loads.get() );
+
+        c.getAll( Arrays.asList( "a", "b", "c" ));
+        assertEquals( 1, loads.get() );
+        assertEquals( 3, c.size() );
+    }
+}
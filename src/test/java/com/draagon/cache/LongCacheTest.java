@@ -0,0 +1,111 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+
+package com.draagon.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test the Caches keyed by primitives
+ * 
+ * @see com.draagon.cache.LongCache
+ * @see com.draagon.cache.IntCache
+ */
+public class LongCacheTest
+{
+    @Test
+    public void testPutGetRemove() throws Exception {
+
+        LongCache<String> c = new LongCache<String>( false, 60, 60 );
+
+        for (long i = 0; i < 10000; i++) {
+            assertNull( c.put( i * 31, "value" + i ));
+        }
+        assertEquals( 10000, c.size() );
+        assertEquals( "value500", c.get( 500 * 31 ));
+        assertNull( c.get( 1 ));
+
+        assertEquals( "value500", c.put( 500 * 31, "replaced" ));
+        assertEquals( "replaced", c.get( 500 * 31 ));
+
+        for (long i = 0; i < 10000; i += 2) {
+            c.remove( i * 31 );
+        }
+        assertEquals( 5000, c.size() );
+        assertFalse( c.containsKey( 0 ));
+        assertTrue( c.containsKey( 31 ));
+
+        // Keys of zero and negative values are fine
+        c.put( Long.MIN_VALUE, "min" );
+        c.put( 0, "zero" );
+        assertEquals( "min", c.get( Long.MIN_VALUE ));
+        assertEquals( "zero", c.get( 0 ));
+
+        c.clear();
+        assertTrue( c.isEmpty() );
+        assertNull( c.get( 31 ));
+    }
+
+    @Test
+    public void testExpires() throws Exception {
+
+        LongCache<String> c = new LongCache<String>( true, 60, 1 );
+
+        c.put( 1, "value1" );
+        c.put( 2, "value2" );
+
+        Thread.sleep( 700 );
+        assertEquals( "value2", c.get( 2 ));
+        Thread.sleep( 700 );
+
+        // The read reset the timeout of 2
+        c.flush();
+        assertEquals( 1, c.size() );
+        assertNull( c.get( 1 ));
+        assertEquals( "value2", c.get( 2 ));
+    }
+
+    @Test
+    public void testExpiresWithManualTicker() throws Exception {
+
+        ManualTicker ticker = new ManualTicker( 0L );
+        LongCache<String> c = new LongCache<String>( true, 60, 1 );
+        c.setTicker( ticker );
+
+        c.put( 1, "value1" );
+        c.put( 2, "value2" );
+
+        ticker.advance( 700L );
+        assertEquals( "value2", c.get( 2 ));
+        ticker.advance( 700L );
+
+        // The read reset the timeout of 2
+        c.flush();
+        assertEquals( 1, c.size() );
+        assertNull( c.get( 1 ));
+        assertEquals( "value2", c.get( 2 ));
+    }
+
+    @Test
+    public void testIntKeys() throws Exception {
+
+        IntCache<String> c = new IntCache<String>( false, 60, 60 );
+
+        c.put( 7, "seven" );
+        c.put( -7, "minus seven" );
+        assertEquals( "seven", c.get( 7 ));
+        assertEquals( "minus seven", c.get( -7 ));
+        assertEquals( "seven", c.remove( 7 ));
+        assertNull( c.get( 7 ));
+        assertEquals( 1, c.size() );
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+
+package com.draagon.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+/**
+ * Test the Cache that stores its items off-heap
+ * 
+ * @see com.draagon.cache.OffHeapCache
+ */
+public class OffHeapCacheTest
+{
+    private static final Serializer<String> STRINGS = new Serializer<String>() {
+        public byte[] serialize(String s) {
+            return s.getBytes( StandardCharsets.UTF_8 );
+        }
+        public String deserialize(byte[] bytes) {
+            return new String( bytes, StandardCharsets.UTF_8 );
+        }
+    };
+
+    @Test
+    public void testPutGetRemove() throws Exception {
+
+        OffHeapCache<String,String> c = new OffHeapCache<String,String>( false, 60, 60, 1 << 20, STRINGS, STRINGS );
+
+        for (int i = 0; i < 1000; i++) {
+            c.put( "key" + i, "value" + i );
+        }
+        assertEquals( 1000, c.size() );
+        assertEquals( "value500", c.get( "key500" ));
+
+        c.put( "key500", "replaced" );
+        assertEquals( "replaced", c.get( "key500" ));
+        assertEquals( 1000, c.size() );
+
+        assertTrue( c.remove( "key500" ));
+        assertFalse( c.containsKey( "key500" ));
+        assertNull( c.get( "key500" ));
+        assertEquals( 999, c.size() );
+
+        c.clear();
+        assertTrue( c.isEmpty() );
+        assertNull( c.get( "key1" ));
+    }
+
+    @Test
+    public void testExpires() throws Exception {
+
+        OffHeapCache<String,String> c = new OffHeapCache<String,String>( true, 60, 1, 1 << 16,
+                new JavaSerializer<String>(), new JavaSerializer<String>() );
+
+        c.put( "a", "value1" );
+        c.put( "b", "value2" );
+
+        Thread.sleep( 700 );
+        assertEquals( "value2", c.get( "b" ));
+        Thread.sleep( 700 );
+
+        // The read reset the timeout of b
+        c.flush();
+        assertEquals( 1, c.size() );
+        assertNull( c.get( "a" ));
+        assertEquals( "value2", c.get( "b" ));
+    }
+
+    @Test
+    public void testExpiresWithManualTicker() throws Exception {
+
+        ManualTicker ticker = new ManualTicker( 0L );
+        OffHeapCache<String,String> c = new OffHeapCache<String,String>( true, 60, 1, 1 << 16,
+                new JavaSerializer<String>(), new JavaSerializer<String>() );
+        c.setTicker( ticker );
+
+        c.put( "a", "value1" );
+        c.put( "b", "value2" );
+
+        ticker.advance( 700L );
+        assertEquals( "value2", c.get( "b" ));
+        ticker.advance( 700L );
+
+        // The read reset the timeout of b
+        c.flush();
+        assertEquals( 1, c.size() );
+        assertNull( c.get( "a" ));
+        assertEquals( "value2", c.get( "b" ));
+    }
+
+    @Test
+    public void testEvictsWhenFull() throws Exception {
+
+        // 16 segments of one 4KB slab, each holding 64 chunks of 64 bytes
+        OffHeapCache<String,String> c = new OffHeapCache<String,String>( false, 60, 60, 1 << 16, STRINGS, STRINGS );
+
+        for (int i = 0; i < 5000; i++) {
+            c.put( "key" + i, "value" + i );
+        }
+        assertTrue( "size bounded", c.size() <= 1024 );
+        assertEquals( "value4999", c.get( "key4999" ));
+        assertEquals( 1 << 16, c.getReservedBytes() );
+    }
+}
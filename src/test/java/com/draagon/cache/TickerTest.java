@@ -0,0 +1,54 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+
+package com.draagon.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import org.junit.Test;
+
+/**
+ * Test the Tickers
+ * 
+ * @see com.draagon.cache.Ticker
+ */
+public class TickerTest
+{
+    @Test
+    public void testManualTickerOnlyMovesWhenAdvanced() throws Exception {
+        
+        ManualTicker ticker = new ManualTicker( 1000L );
+        assertEquals( 1000L, ticker.read() );
+        
+        Thread.sleep( 20 );
+        assertEquals( 1000L, ticker.read() );
+        
+        assertEquals( 1500L, ticker.advance( 500 ));
+        assertEquals( 3500L, ticker.advance( Duration.ofSeconds( 2 )));
+        
+        ticker.set( 10L );
+        assertEquals( 10L, ticker.read() );
+    }
+    
+    @Test
+    public void testCoarseTickerFollowsTheClock() throws Exception {
+        
+        CoarseTicker ticker = new CoarseTicker( 5 );
+        try {
+            long start = ticker.read();
+            assertTrue( Math.abs( System.currentTimeMillis() - start ) < 1000L );
+            
+            Thread.sleep( 100 );
+            assertTrue( "time moved forward", ticker.read() > start );
+            assertTrue( ticker.read() <= System.currentTimeMillis() );
+        } finally {
+            ticker.close();
+        }
+    }
+}
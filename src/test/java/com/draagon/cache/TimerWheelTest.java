@@ -0,0 +1,150 @@
+/*
+ * Copyright 2001 Draagon Software LLC. All Rights Reserved.
+ *
+ * This software is the proprietary information of Draagon Software LLC.
+ * Use is subject to license terms.
+ */
+
+package com.draagon.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Test the TimerWheel used to expire Cache entries
+ * 
+ * @see com.draagon.cache.TimerWheel
+ */
+public class TimerWheelTest
+{
+    private static final long START = 1500000000000L;
+
+    private static class Entry implements TimerWheel.Timer {
+        long time;
+        TimerWheel.Timer prev;
+        TimerWheel.Timer next;
+        boolean expired;
+
+        Entry(long time) { this.time = time; }
+
+        public long getVariableTime() { return time; }
+        public void setVariableTime(long time) { this.time = time; }
+        public TimerWheel.Timer getPreviousInVariableOrder() { return prev; }
+        public void setPreviousInVariableOrder(TimerWheel.Timer prev) { this.prev = prev; }
+        public TimerWheel.Timer getNextInVariableOrder() { return next; }
+        public void setNextInVariableOrder(TimerWheel.Timer next) { this.next = next; }
+    }
+
+    private final List<Entry> expired = new ArrayList<Entry>();
+
+    private final TimerWheel.Expirer<Entry> expirer = new TimerWheel.Expirer<Entry>() {
+        public boolean expire(Entry entry, long now) {
+            entry.expired = true;
+            expired.add(entry);
+            return true;
+        }
+    };
+
+    @Test
+    public void testExpiresOnlyDueEntries() {
+
+        TimerWheel<Entry> wheel = new TimerWheel<Entry>( START );
+
+        long[] delays = { 500L, 5000L, 90000L, 2L * 3600000L, 3L * 86400000L, 30L * 86400000L };
+        List<Entry> entries = new ArrayList<Entry>();
+        for (long delay : delays) {
+            Entry e = new Entry( START + delay );
+            wheel.schedule( e );
+            entries.add( e );
+        }
+
+        // Step through time and make sure each entry expires once it is due and not before
+        for (long now = START; now <= START + 31L * 86400000L; now += 250L + (now - START) / 100L) {
+            wheel.advance( now, expirer );
+            for (Entry e : entries) {
+                if (e.expired) {
+                    assertTrue( "expired after due", e.time < now );
+                }
+            }
+        }
+
+        assertEquals( entries.size(), expired.size() );
+    }
+
+    @Test
+    public void testDescheduledEntriesDoNotExpire() {
+
+        TimerWheel<Entry> wheel = new TimerWheel<Entry>( START );
+
+        Entry e1 = new Entry( START + 2000L );
+        Entry e2 = new Entry( START + 2000L );
+        wheel.schedule( e1 );
+        wheel.schedule( e2 );
+        wheel.deschedule( e1 );
+
+        assertEquals( 1, wheel.advance( START + 10000L, expirer ));
+        assertTrue( e2.expired );
+        assertTrue( !e1.expired );
+    }
+
+    @Test
+    public void testRescheduledEntriesExpireLater() {
+
+        TimerWheel<Entry> wheel = new TimerWheel<Entry>( START );
+
+        Entry e = new Entry( START + 2000L );
+        wheel.schedule( e );
+        e.setVariableTime( START + 120000L );
+        wheel.reschedule( e );
+
+        assertEquals( 0, wheel.advance( START + 60000L, expirer ));
+        assertEquals( 1, wheel.advance( START + 121000L, expirer ));
+    }
+
+    @Test
+    public void testStopsWhenExpirerIsExhausted() {
+
+        TimerWheel<Entry> wheel = new TimerWheel<Entry>( START );
+        for (int i = 0; i < 105; i++) {
+            wheel.schedule( new Entry( START + 500L + i ));
+        }
+
+        final int[] calls = new int[1];
+        final int[] budget = new int[1];
+        TimerWheel.Expirer<Entry> budgeted = new TimerWheel.Expirer<Entry>() {
+            public boolean expire(Entry entry, long now) {
+                calls[0]++;
+                if (budget[0] == 0)
+                    return false;
+                budget[0]--;
+                return expirer.expire( entry, now );
+            }
+
+            public boolean isExhausted() {
+                return budget[0] == 0;
+            }
+        };
+
+        long now = START + 5000L;
+        int total = 0;
+        for (int slice = 1; slice <= 10; slice++) {
+            budget[0] = 10;
+            calls[0] = 0;
+            assertEquals( 10, wheel.advance( now, budgeted ));
+            assertEquals( "stops at the first entry over budget", 11, calls[0] );
+            total += 10;
+            assertEquals( total, expired.size() );
+        }
+
+        budget[0] = 10;
+        assertEquals( 5, wheel.advance( now, budgeted ));
+        assertEquals( "nothing left", 0, wheel.advance( now, budgeted ));
+        for (Entry e : expired) {
+            assertTrue( e.prev == null && e.next == null );
+        }
+    }
+}